@@ -0,0 +1,64 @@
+package me.vkandola.emulator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a {@link Debugger} costs BRIX, in instructions per microsecond (MIPS). Detached and disarmed should match, as
+ * neither leaves the fast path. Armed, with a breakpoint that is never reached, shows the cost of the checked path.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DebuggerBenchmark {
+    private static final int CYCLES = 1000;
+
+    @Param({"DETACHED", "DISARMED", "ARMED"})
+    public String debugger;
+
+    @Param({"false", "true"})
+    public boolean recompile;
+
+    private VirtualMachine vm;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        vm = new VirtualMachine();
+        vm.setRecompilerEnabled(recompile);
+        vm.loadROM(InterpreterBenchmark.ROM_DIRECTORY + "BRIX");
+        if (!debugger.equals("DETACHED")) {
+            Debugger attached = new Debugger();
+            if (debugger.equals("ARMED")) {
+                attached.addBreakpoint(VirtualMachine.MEMORY_SIZE - 2);
+            }
+            vm.setDebugger(attached);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CYCLES)
+    public long run() {
+        // runFor returns after every retry of FX0A while waiting for a key
+        long executed = 0;
+        while (executed < CYCLES) {
+            executed += vm.runFor(CYCLES - executed);
+        }
+        return executed;
+    }
+}
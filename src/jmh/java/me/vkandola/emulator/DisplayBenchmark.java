@@ -0,0 +1,90 @@
+package me.vkandola.emulator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The screen work of a frame in low and high resolution: a 16x16 sprite, scrolling, clearing, and copying the screen
+ * out for display. High resolution has four times the pixels in rows of two longs rather than one, so each of these
+ * should cost well under four times as much as in low resolution.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DisplayBenchmark {
+    @Param({"LORES", "HIRES"})
+    public String resolution;
+
+    private VirtualMachine vm;
+    private final Frame frame = new Frame();
+    private int x;
+    private int y;
+
+    @Setup
+    public void setup() {
+        vm = new VirtualMachine();
+        vm.setHighResolution(resolution.equals("HIRES"));
+        // A screen full of sprites, read from the fonts
+        for (int row = 0; row < vm.getScreenHeight(); row += 16) {
+            for (int column = 0; column < vm.getScreenWidth(); column += 16) {
+                vm.draw(column + 3, row + 1, 0);
+            }
+        }
+        // Unaligned, across the middle of a high resolution row
+        x = vm.getScreenWidth() / 2 - 5;
+        y = vm.getScreenHeight() / 2 - 8;
+    }
+
+    @Benchmark
+    public byte draw() {
+        return vm.draw(x, y, 0);
+    }
+
+    @Benchmark
+    public void scrollDown() {
+        vm.scrollVertically(4);
+    }
+
+    @Benchmark
+    public void scrollRight() {
+        vm.scrollHorizontally(4);
+    }
+
+    @Benchmark
+    public void clearScreen() {
+        // Draw first so there is something to clear
+        vm.draw(x, y, 0);
+        vm.clearScreen();
+    }
+
+    @Benchmark
+    public Frame copyFrame() {
+        frame.copyFrom(vm);
+        return frame;
+    }
+
+    /**
+     * A scrolling game's frame: scroll a row, draw a sprite, hand the screen to the display.
+     */
+    @Benchmark
+    public Frame frame() {
+        vm.scrollVertically(1);
+        vm.draw(x, y, 0);
+        frame.copyFrom(vm);
+        return frame;
+    }
+}
@@ -0,0 +1,77 @@
+package me.vkandola.emulator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to draw one sprite and to clear the screen. Sprites are read from the font at address 0, and drawing the same
+ * sprite twice in a row puts the screen back, so every invocation does the same work.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DrawBenchmark {
+    @Param({"1", "5", "8", "15"})
+    public int height;
+
+    // Where the sprite goes: fully on screen, or wrapping around the right edge, the bottom edge or both
+    @Param({"ALIGNED", "UNALIGNED", "WRAP_X", "WRAP_Y", "WRAP_XY"})
+    public String position;
+
+    private VirtualMachine vm;
+    private int x;
+    private int y;
+
+    @Setup
+    public void setup() {
+        vm = new VirtualMachine();
+        switch (position) {
+            case "ALIGNED":
+                x = 16;
+                y = 8;
+                break;
+            case "UNALIGNED":
+                x = 13;
+                y = 8;
+                break;
+            case "WRAP_X":
+                x = VirtualMachine.SCREEN_WIDTH - 3;
+                y = 8;
+                break;
+            case "WRAP_Y":
+                x = 13;
+                y = VirtualMachine.SCREEN_HEIGHT - 3;
+                break;
+            default:
+                x = VirtualMachine.SCREEN_WIDTH - 3;
+                y = VirtualMachine.SCREEN_HEIGHT - 3;
+                break;
+        }
+    }
+
+    @Benchmark
+    public byte draw() {
+        return vm.draw(x, y, height);
+    }
+
+    @Benchmark
+    public void clearScreen() {
+        // Draw first so there is something to clear
+        vm.draw(x, y, height);
+        vm.clearScreen();
+    }
+}
@@ -0,0 +1,68 @@
+package me.vkandola.emulator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Instruction throughput on the bundled ROMs with no keys held, in instructions per microsecond (MIPS).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class InterpreterBenchmark {
+    static final String ROM_DIRECTORY = "roms/";
+    private static final int CYCLES = 1000;
+
+    @Param({"15PUZZLE", "BLINKY", "BLITZ", "BRIX", "CONNECT4", "GUESS", "HIDDEN", "INVADERS", "KALEID", "MAZE",
+            "MERLIN", "MISSILE", "PONG", "PONG2", "PUZZLE", "SYZYGY", "TANK", "TETRIS", "TICTAC", "UFO", "VBRIX",
+            "VERS", "WIPEOFF"})
+    public String rom;
+
+    private VirtualMachine interpreted;
+    private VirtualMachine recompiled;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        interpreted = new VirtualMachine();
+        interpreted.loadROM(ROM_DIRECTORY + rom);
+        recompiled = new VirtualMachine();
+        recompiled.setRecompilerEnabled(true);
+        recompiled.loadROM(ROM_DIRECTORY + rom);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CYCLES)
+    public void cycle() {
+        VirtualMachine vm = interpreted;
+        for (int i = 0; i < CYCLES; i++) {
+            vm.cycle();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CYCLES)
+    public long recompiled() {
+        // runFor returns after every retry of FX0A while waiting for a key
+        long executed = 0;
+        while (executed < CYCLES) {
+            executed += recompiled.runFor(CYCLES - executed);
+        }
+        return executed;
+    }
+}
@@ -0,0 +1,70 @@
+package me.vkandola.emulator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Instructions per microsecond (MIPS) under each {@link QuirkProfile}, measured as {@link InterpreterBenchmark} does.
+ * Every profile should match MODERN, and InterpreterBenchmark from before profiles existed, as a profile only changes
+ * which handler an instruction is decoded to.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class QuirkBenchmark {
+    private static final int CYCLES = 1000;
+
+    @Param({"BRIX", "INVADERS"})
+    public String rom;
+
+    @Param({"COSMAC_VIP", "CHIP48", "SCHIP", "MODERN"})
+    public QuirkProfile quirks;
+
+    @Param({"false", "true"})
+    public boolean recompile;
+
+    private VirtualMachine vm;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        vm = new VirtualMachine();
+        vm.setRecompilerEnabled(recompile);
+        vm.setQuirks(quirks);
+        vm.loadROM(InterpreterBenchmark.ROM_DIRECTORY + rom);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CYCLES)
+    public long run() {
+        VirtualMachine vm = this.vm;
+        if (!recompile) {
+            // As InterpreterBenchmark.cycle, without idle loop skipping
+            for (int i = 0; i < CYCLES; i++) {
+                vm.cycle();
+            }
+            return CYCLES;
+        }
+        // runFor returns after every retry of FX0A while waiting for a key
+        long executed = 0;
+        while (executed < CYCLES) {
+            executed += vm.runFor(CYCLES - executed);
+        }
+        return executed;
+    }
+}
@@ -0,0 +1,74 @@
+package me.vkandola.emulator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frames per second the software rasterizer draws at scale 16, a 2048x1024 picture with about as many pixels as
+ * 1080p. Every row changes from one frame to the next in {@link #fullFrame()}, as on a clear or a scroll, while
+ * {@link #spriteFrame()} moves one sprite about, as most frames of most games do.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RasterizerBenchmark {
+    private static final int SCALE = 16;
+
+    @Param({"LORES", "HIRES"})
+    public String resolution;
+
+    @Param({"false", "true"})
+    public boolean smooth;
+
+    private SoftwareRasterizer rasterizer;
+    private final Frame[] full = {new Frame(), new Frame()};
+    private final Frame[] sprite = {new Frame(), new Frame()};
+    private int frame;
+
+    @Setup
+    public void setup() {
+        rasterizer = new SoftwareRasterizer(SCALE, smooth);
+        VirtualMachine vm = new VirtualMachine();
+        vm.setHighResolution(resolution.equals("HIRES"));
+        // A screen full of sprites, then the same screen shifted down a row
+        for (int row = 0; row < vm.getScreenHeight(); row += 16) {
+            for (int column = 0; column < vm.getScreenWidth(); column += 16) {
+                vm.draw(column + 3, row + 1, 0);
+            }
+        }
+        full[0].copyFrom(vm);
+        vm.scrollVertically(1);
+        full[1].copyFrom(vm);
+
+        vm.clearScreen();
+        vm.draw(10, 10, 5);
+        sprite[0].copyFrom(vm);
+        vm.draw(10, 10, 5);
+        vm.draw(11, 10, 5);
+        sprite[1].copyFrom(vm);
+    }
+
+    @Benchmark
+    public void fullFrame() {
+        rasterizer.draw(full[frame ^= 1]);
+    }
+
+    @Benchmark
+    public void spriteFrame() {
+        rasterizer.draw(sprite[frame ^= 1]);
+    }
+}
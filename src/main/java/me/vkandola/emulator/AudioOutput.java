@@ -0,0 +1,140 @@
+package me.vkandola.emulator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Turns the buzzer state of each timer tick into a square wave on a dedicated thread, and sends it to an
+ * {@link AudioSink}.
+ * <p>
+ * The machine's thread only drops one byte per tick into a {@link ByteRing}, so it never blocks, allocates or calls
+ * into the sound device. The audio thread synthesises a tick's worth of samples for every byte it takes. If it falls
+ * too far behind, say while the machine runs uncapped, ticks are dropped rather than stalling the machine.
+ */
+public class AudioOutput implements Closeable {
+    public static final int SAMPLE_RATE = 44100;
+    public static final int TONE_HZ = 440;
+    private static final int SAMPLES_PER_TICK = SAMPLE_RATE / FrameScheduler.FRAMES_PER_SECOND;
+    private static final int SAMPLES_PER_PERIOD = SAMPLE_RATE / TONE_HZ;
+    private static final short AMPLITUDE = 6000;
+    public static final int DEFAULT_BUFFERED_TICKS = 64;
+    private static final long IDLE_NANOS = 4_000_000L;
+
+    private final AudioSink sink;
+    private final ByteRing ticks;
+    private final Thread thread;
+    private volatile boolean closing;
+    private long droppedTicks; // Only written by the machine's thread
+
+    // Audio thread only. The phase carries over between ticks so that a held tone has no seams.
+    private final short[] samples = new short[SAMPLES_PER_TICK];
+    private int phase;
+    private volatile long samplesWritten;
+
+    public AudioOutput(AudioSink sink) {
+        this(sink, DEFAULT_BUFFERED_TICKS);
+    }
+
+    /**
+     * Starts the audio thread, which opens the sink.
+     *
+     * @param bufferedTicks Ticks that may wait for the audio thread before more are dropped, enough for a whole run
+     *                      when writing a file from a machine running uncapped
+     */
+    public AudioOutput(AudioSink sink, int bufferedTicks) {
+        this.sink = sink;
+        this.ticks = new ByteRing(bufferedTicks);
+        thread = new Thread(this::play, "Audio");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues one tick of sound or silence, meant to be called from a host's {@link Host#tickSound(boolean)}.
+     */
+    public void tick(boolean playing) {
+        if (!ticks.offer(playing ? (byte) 1 : 0)) {
+            droppedTicks++;
+        }
+    }
+
+    /**
+     * @return Ticks not played because the audio thread was too far behind
+     */
+    public long getDroppedTicks() {
+        return droppedTicks;
+    }
+
+    /**
+     * @return Samples sent to the sink so far
+     */
+    public long getSamplesWritten() {
+        return samplesWritten;
+    }
+
+    /**
+     * Plays out the ticks already queued, then stops the audio thread and closes the sink.
+     */
+    @Override
+    public void close() throws IOException {
+        closing = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Audio thread.
+     */
+    private void play() {
+        boolean open = true;
+        try {
+            sink.open(SAMPLE_RATE);
+        } catch (IOException | RuntimeException | LinkageError e) {
+            System.out.printf("[Audio] Unable to open %s, playing nothing: %s\n", sink.getClass().getSimpleName(), e);
+            open = false;
+        }
+
+        while (true) {
+            int tick = ticks.poll();
+            if (tick < 0) {
+                if (closing) {
+                    break;
+                }
+                LockSupport.parkNanos(IDLE_NANOS);
+                continue;
+            }
+            if (!open) {
+                continue;
+            }
+            synthesise(tick != 0);
+            try {
+                sink.write(samples, SAMPLES_PER_TICK);
+                samplesWritten += SAMPLES_PER_TICK;
+            } catch (IOException | RuntimeException e) {
+                System.out.printf("[Audio] Writing to %s failed, playing nothing: %s\n",
+                        sink.getClass().getSimpleName(), e);
+                open = false;
+            }
+        }
+
+        try {
+            sink.close();
+        } catch (IOException | RuntimeException e) {
+            System.out.printf("[Audio] Closing %s failed: %s\n", sink.getClass().getSimpleName(), e);
+        }
+    }
+
+    private void synthesise(boolean playing) {
+        for (int i = 0; i < SAMPLES_PER_TICK; i++) {
+            samples[i] = !playing ? 0 : phase < SAMPLES_PER_PERIOD / 2 ? AMPLITUDE : -AMPLITUDE;
+            if (++phase == SAMPLES_PER_PERIOD) {
+                phase = 0;
+            }
+        }
+    }
+}
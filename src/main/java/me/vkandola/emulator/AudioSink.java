@@ -0,0 +1,29 @@
+package me.vkandola.emulator;
+
+import java.io.IOException;
+
+/**
+ * Somewhere for {@link AudioOutput} to send the samples it synthesises. Every method is called on the audio thread,
+ * so a sink may block in {@link #write(short[], int)} to pace itself to the sound device.
+ */
+public interface AudioSink {
+    /**
+     * Called once before any samples are written.
+     *
+     * @param sampleRate Samples per second, mono signed 16 bit
+     */
+    void open(int sampleRate) throws IOException;
+
+    /**
+     * Plays or stores samples. The array is reused for the next call once this returns.
+     *
+     * @param samples Buffer holding the samples from index 0
+     * @param count   Number of samples to take from the buffer
+     */
+    void write(short[] samples, int count) throws IOException;
+
+    /**
+     * Called once after the last samples, or after {@link #open(int)} fails.
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,563 @@
+package me.vkandola.emulator;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import static me.vkandola.emulator.VirtualMachine.BIG_FONT;
+import static me.vkandola.emulator.VirtualMachine.BIG_FONT_START;
+import static me.vkandola.emulator.VirtualMachine.FLAG_REGISTER;
+import static me.vkandola.emulator.VirtualMachine.FONT;
+import static me.vkandola.emulator.VirtualMachine.FONT_HEIGHT;
+import static me.vkandola.emulator.VirtualMachine.FONT_SIZE;
+import static me.vkandola.emulator.VirtualMachine.MEMORY_PROGRAM_START;
+import static me.vkandola.emulator.VirtualMachine.NUMBER_REGISTERS;
+import static me.vkandola.emulator.VirtualMachine.SCREEN_HEIGHT;
+import static me.vkandola.emulator.VirtualMachine.SCREEN_WIDTH;
+import static me.vkandola.emulator.VirtualMachine.STACK_SIZE;
+
+/**
+ * Many headless machines stepped together, with the state of all of them kept in flat primitive arrays rather than
+ * one {@link VirtualMachine} object each. Machine m's registers, memory, stack and screen live at m times their size
+ * in the matching array, and runs are split across a {@link ForkJoinPool} a few machines per task.
+ * <p>
+ * Every machine produces bit-identical results to a {@link VirtualMachine} with a {@link HeadlessHost}, the same
+ * CHIP-8 ROM, instructions per frame, keys and {@link QuirkProfile}. Where that machine would throw, e.g. on a stack
+ * overflow, the batch machine is marked as faulted and stops instead. Batch machines are plain CHIP-8 with 4K of
+ * memory each, so they also fault on addresses past 4K and on SUPER-CHIP and XO-CHIP instructions.
+ */
+public class BatchMachine {
+    static final int MEMORY_SIZE = 0x1000;
+
+    // Runs are split down to tasks of at most this many machines
+    private static final int MACHINES_PER_TASK = 16;
+
+    private final int size;
+    private final ForkJoinPool pool;
+    private int instructionsPerFrame = VirtualMachine.DEFAULT_INSTRUCTIONS_PER_FRAME;
+    // Decoded form of every possible opcode for the quirk profile, shared by all machines and threads
+    private final int[] decodeTable = new int[0x10000];
+    private QuirkProfile quirks;
+
+    // Per machine state, see VirtualMachine for what each one holds
+    private final byte[] MEMORY;
+    private final byte[] V;
+    private final short[] STACK;
+    private final long[] SCREEN_BUFFER;
+    private final short[] I;
+    private final short[] PC;
+    private final short[] SP;
+    private final byte[] soundTimer;
+    private final byte[] delayTimer;
+    private final int[] frameCycle;
+    private final long[] cycleCount;
+    private final long[] randomState;
+    private final int[] keys; // Bit per key held down
+    private final boolean[] faulted;
+
+    /**
+     * Creates machines stepped on the common pool.
+     *
+     * @param size The number of machines
+     */
+    public BatchMachine(int size) {
+        this(size, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param size The number of machines
+     * @param pool The pool runs are split across
+     */
+    public BatchMachine(int size, ForkJoinPool pool) {
+        this.size = size;
+        this.pool = pool;
+        MEMORY = new byte[size * MEMORY_SIZE];
+        V = new byte[size * NUMBER_REGISTERS];
+        STACK = new short[size * STACK_SIZE];
+        SCREEN_BUFFER = new long[size * SCREEN_HEIGHT];
+        I = new short[size];
+        PC = new short[size];
+        SP = new short[size];
+        soundTimer = new byte[size];
+        delayTimer = new byte[size];
+        frameCycle = new int[size];
+        cycleCount = new long[size];
+        randomState = new long[size];
+        keys = new int[size];
+        faulted = new boolean[size];
+
+        for (int m = 0; m < size; m++) {
+            for (int i = 0; i < FONT_SIZE; i++) {
+                MEMORY[m * MEMORY_SIZE + i] = (byte) FONT[i];
+            }
+            for (int i = 0; i < BIG_FONT.length; i++) {
+                MEMORY[m * MEMORY_SIZE + BIG_FONT_START + i] = (byte) BIG_FONT[i];
+            }
+            PC[m] = MEMORY_PROGRAM_START;
+            randomState[m] = Lcg.seed(VirtualMachine.RANDOM_SEED);
+        }
+        setQuirks(QuirkProfile.MODERN);
+    }
+
+    /**
+     * Sets the platform whose behaviour every machine follows where platforms differ, see
+     * {@link VirtualMachine#setQuirks(QuirkProfile)}. Not to be called during a run.
+     */
+    public void setQuirks(QuirkProfile quirks) {
+        this.quirks = quirks;
+        for (int opcode = 0; opcode < decodeTable.length; opcode++) {
+            decodeTable[opcode] = quirks.decode(opcode);
+        }
+    }
+
+    public QuirkProfile getQuirks() {
+        return quirks;
+    }
+
+    /**
+     * Loads a ROM into every machine.
+     *
+     * @param filepath The file system path of the ROM to load
+     * @throws IOException Thrown if failed to find the ROM
+     */
+    public void loadROM(String filepath) throws IOException {
+        byte[] romBytes = Files.readAllBytes(Paths.get(filepath));
+        for (int m = 0; m < size; m++) {
+            loadROM(m, romBytes);
+        }
+    }
+
+    /**
+     * Loads a ROM into one machine.
+     */
+    public void loadROM(int machine, byte[] romBytes) {
+        if ((MEMORY_SIZE - MEMORY_PROGRAM_START) < romBytes.length) {
+            throw new IllegalArgumentException("ROM is too big to fit into memory, " + romBytes.length);
+        }
+        System.arraycopy(romBytes, 0, MEMORY, machine * MEMORY_SIZE + MEMORY_PROGRAM_START, romBytes.length);
+    }
+
+    public void setInstructionsPerFrame(int instructionsPerFrame) {
+        if (instructionsPerFrame < 1) {
+            throw new IllegalArgumentException("Instructions per frame must be positive, got " + instructionsPerFrame);
+        }
+        this.instructionsPerFrame = instructionsPerFrame;
+    }
+
+    /**
+     * @param machine The machine
+     * @param keys    Bit i set if key i is held down
+     */
+    public void setKeys(int machine, int keys) {
+        this.keys[machine] = keys & 0xFFFF;
+    }
+
+    /**
+     * Runs every machine that has not faulted for a number of cycles, in parallel.
+     *
+     * @param cycles The number of cycles each machine executes
+     * @return The total number of cycles executed across all machines
+     */
+    public long runFor(long cycles) {
+        long before = getTotalCycleCount();
+        pool.invoke(new Run(0, size, cycles));
+        return getTotalCycleCount() - before;
+    }
+
+    private class Run extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final long cycles;
+
+        Run(int from, int to, long cycles) {
+            this.from = from;
+            this.to = to;
+            this.cycles = cycles;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= MACHINES_PER_TASK) {
+                for (int m = from; m < to; m++) {
+                    runFor(m, cycles);
+                }
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Run(from, middle, cycles), new Run(middle, to, cycles));
+            }
+        }
+    }
+
+    // Thrown where VirtualMachine would index outside of its arrays, no stack trace needed
+    private static final RuntimeException FAULT = new RuntimeException("Machine fault", null, false, false) {
+    };
+
+    private void runFor(int m, long cycles) {
+        if (faulted[m]) {
+            return;
+        }
+        try {
+            for (long c = 0; c < cycles; c++) {
+                PC[m] = execute(m, fetch(m));
+                endCycle(m);
+            }
+        } catch (RuntimeException e) {
+            faulted[m] = true;
+        }
+    }
+
+    /**
+     * @return The index into MEMORY of an address of machine m
+     */
+    private static int address(int m, int address) {
+        if (address < 0 || address >= MEMORY_SIZE) {
+            throw FAULT;
+        }
+        return m * MEMORY_SIZE + address;
+    }
+
+    /**
+     * @return The index into STACK of an entry of machine m
+     */
+    private static int stack(int m, int sp) {
+        if (sp < 0 || sp >= STACK_SIZE) {
+            throw FAULT;
+        }
+        return m * STACK_SIZE + sp;
+    }
+
+    private int fetch(int m) {
+        int pc = PC[m];
+        return decodeTable[((MEMORY[address(m, pc)] & 0xFF) << 8) | (MEMORY[address(m, pc + 1)] & 0xFF)];
+    }
+
+    private void endCycle(int m) {
+        cycleCount[m]++;
+        if (++frameCycle[m] >= instructionsPerFrame) {
+            frameCycle[m] = 0;
+            if (soundTimer[m] != 0) {
+                soundTimer[m]--;
+            }
+            if (delayTimer[m] != 0) {
+                delayTimer[m]--;
+            }
+        }
+    }
+
+    /**
+     * Executes a decoded instruction at machine m's PC, mirroring VirtualMachine's handlers.
+     *
+     * @return The address of the next instruction
+     */
+    private short execute(int m, int decoded) {
+        int v = m * NUMBER_REGISTERS;
+        int X = v + Decoder.x(decoded);
+        int Y = v + Decoder.y(decoded);
+        int F = v + FLAG_REGISTER;
+        short pc = PC[m];
+        short NEXT_PC = (short) (pc + 2);
+
+        switch (Decoder.op(decoded)) {
+            case (Decoder.OP_CLS):
+                for (int i = 0; i < SCREEN_HEIGHT; i++) {
+                    SCREEN_BUFFER[m * SCREEN_HEIGHT + i] = 0;
+                }
+                break;
+            case (Decoder.OP_RET): {
+                short sp = SP[m];
+                NEXT_PC = STACK[stack(m, sp)];
+                SP[m] = (short) (sp - 1);
+            }
+            break;
+            case (Decoder.OP_JP):
+                NEXT_PC = (short) Decoder.nnn(decoded);
+                break;
+            case (Decoder.OP_CALL): {
+                short sp = (short) (SP[m] + 1);
+                SP[m] = sp;
+                STACK[stack(m, sp)] = NEXT_PC;
+                NEXT_PC = (short) Decoder.nnn(decoded);
+            }
+            break;
+            case (Decoder.OP_SE_VX_NN):
+                if ((V[X] & 0xFF) == Decoder.nn(decoded)) {
+                    NEXT_PC = skip(m, NEXT_PC);
+                }
+                break;
+            case (Decoder.OP_SNE_VX_NN):
+                if ((V[X] & 0xFF) != Decoder.nn(decoded)) {
+                    NEXT_PC = skip(m, NEXT_PC);
+                }
+                break;
+            case (Decoder.OP_SE_VX_VY):
+                if (V[X] == V[Y]) {
+                    NEXT_PC = skip(m, NEXT_PC);
+                }
+                break;
+            case (Decoder.OP_LD_VX_NN):
+                V[X] = (byte) Decoder.nn(decoded);
+                break;
+            case (Decoder.OP_ADD_VX_NN):
+                V[X] += (byte) Decoder.nn(decoded);
+                break;
+            case (Decoder.OP_LD_VX_VY):
+                V[X] = V[Y];
+                break;
+            case (Decoder.OP_OR):
+                V[X] = (byte) (V[X] | V[Y]);
+                break;
+            case (Decoder.OP_AND):
+                V[X] = (byte) (V[X] & V[Y]);
+                break;
+            case (Decoder.OP_XOR):
+                V[X] = (byte) (V[X] ^ V[Y]);
+                break;
+            case (Decoder.OP_OR_RESET_VF):
+                V[X] = (byte) (V[X] | V[Y]);
+                V[F] = 0;
+                break;
+            case (Decoder.OP_AND_RESET_VF):
+                V[X] = (byte) (V[X] & V[Y]);
+                V[F] = 0;
+                break;
+            case (Decoder.OP_XOR_RESET_VF):
+                V[X] = (byte) (V[X] ^ V[Y]);
+                V[F] = 0;
+                break;
+            case (Decoder.OP_ADD_VX_VY): {
+                int sum = (V[X] & 0xFF) + (V[Y] & 0xFF);
+                V[X] = (byte) sum;
+                V[F] = (byte) (sum > 0xFF ? 1 : 0);
+            }
+            break;
+            case (Decoder.OP_SUB): {
+                int l = V[X] & 0xFF;
+                int r = V[Y] & 0xFF;
+                V[X] = (byte) (l - r);
+                V[F] = (byte) (l >= r ? 1 : 0);
+            }
+            break;
+            case (Decoder.OP_SHR):
+            case (Decoder.OP_SHR_VX): {
+                int value = V[Decoder.op(decoded) == Decoder.OP_SHR ? Y : X] & 0xFF;
+                V[X] = (byte) (value >>> 1);
+                V[F] = (byte) (value & 0x01);
+            }
+            break;
+            case (Decoder.OP_SUBN): {
+                int l = V[Y] & 0xFF;
+                int r = V[X] & 0xFF;
+                V[X] = (byte) (l - r);
+                V[F] = (byte) (l >= r ? 1 : 0);
+            }
+            break;
+            case (Decoder.OP_SHL):
+            case (Decoder.OP_SHL_VX): {
+                int value = V[Decoder.op(decoded) == Decoder.OP_SHL ? Y : X] & 0xFF;
+                V[X] = (byte) (value << 1);
+                V[F] = (byte) (value >>> 7);
+            }
+            break;
+            case (Decoder.OP_SNE_VX_VY):
+                if (V[X] != V[Y]) {
+                    NEXT_PC = skip(m, NEXT_PC);
+                }
+                break;
+            case (Decoder.OP_LD_I):
+                I[m] = (short) Decoder.nnn(decoded);
+                break;
+            case (Decoder.OP_JP_V0):
+                NEXT_PC = (short) ((V[v] & 0xFF) + Decoder.nnn(decoded));
+                break;
+            case (Decoder.OP_JP_VX):
+                NEXT_PC = (short) ((V[v + (Decoder.nnn(decoded) >> 8)] & 0xFF) + Decoder.nnn(decoded));
+                break;
+            case (Decoder.OP_RND): {
+                randomState[m] = Lcg.next(randomState[m]);
+                int randomValue = Lcg.value(randomState[m]) % 255;
+                V[X] = (byte) (randomValue & Decoder.nn(decoded));
+            }
+            break;
+            case (Decoder.OP_DRW):
+                V[F] = draw(m, V[X] & 0xFF, V[Y] & 0xFF, Decoder.n(decoded), false);
+                break;
+            case (Decoder.OP_DRW_CLIP):
+                V[F] = draw(m, V[X] & 0xFF, V[Y] & 0xFF, Decoder.n(decoded), true);
+                break;
+            case (Decoder.OP_SKP):
+                if ((keys[m] & (1 << Decoder.x(decoded))) != 0) {
+                    NEXT_PC = skip(m, NEXT_PC);
+                }
+                break;
+            case (Decoder.OP_SKNP):
+                if ((keys[m] & (1 << Decoder.x(decoded))) == 0) {
+                    NEXT_PC = skip(m, NEXT_PC);
+                }
+                break;
+            case (Decoder.OP_LD_VX_DT):
+                V[X] = delayTimer[m];
+                break;
+            case (Decoder.OP_LD_VX_K):
+                // No host to wait on, retry until a key is held down
+                if (keys[m] == 0) {
+                    NEXT_PC = pc;
+                } else {
+                    V[X] = (byte) Integer.numberOfTrailingZeros(keys[m]);
+                }
+                break;
+            case (Decoder.OP_LD_DT):
+                delayTimer[m] = V[X];
+                break;
+            case (Decoder.OP_LD_ST):
+                soundTimer[m] = V[X];
+                break;
+            case (Decoder.OP_ADD_I):
+                I[m] += V[X] & 0xFF;
+                break;
+            case (Decoder.OP_LD_F):
+                I[m] = (short) (FONT_HEIGHT * (V[X] & 0xFF));
+                break;
+            case (Decoder.OP_LD_B): {
+                int number = V[X] & 0xFF;
+                MEMORY[address(m, I[m])] = (byte) (number / 100);
+                MEMORY[address(m, I[m] + 1)] = (byte) (number / 10 % 10);
+                MEMORY[address(m, I[m] + 2)] = (byte) (number % 10);
+            }
+            break;
+            case (Decoder.OP_STORE):
+            case (Decoder.OP_STORE_INCREMENT_BY_X):
+            case (Decoder.OP_STORE_KEEP_I): {
+                int last = Decoder.x(decoded);
+                for (int i = 0; i <= last; i++) {
+                    MEMORY[address(m, I[m] + i)] = V[v + i];
+                }
+                I[m] += increment(decoded);
+            }
+            break;
+            case (Decoder.OP_LOAD):
+            case (Decoder.OP_LOAD_INCREMENT_BY_X):
+            case (Decoder.OP_LOAD_KEEP_I): {
+                int last = Decoder.x(decoded);
+                for (int i = 0; i <= last; i++) {
+                    V[v + i] = MEMORY[address(m, I[m] + i)];
+                }
+                I[m] += increment(decoded);
+            }
+            break;
+            case (Decoder.OP_UNKNOWN):
+                // Unknown opcodes are skipped
+                break;
+            default:
+                // SUPER-CHIP or XO-CHIP
+                throw FAULT;
+        }
+        return NEXT_PC;
+    }
+
+    /**
+     * @return How far FX55 or FX65 moves I, for the quirk profile its operation was decoded for
+     */
+    private static int increment(int decoded) {
+        switch (Decoder.op(decoded)) {
+            case (Decoder.OP_STORE_INCREMENT_BY_X):
+            case (Decoder.OP_LOAD_INCREMENT_BY_X):
+                return Decoder.x(decoded);
+            case (Decoder.OP_STORE_KEEP_I):
+            case (Decoder.OP_LOAD_KEEP_I):
+                return 0;
+            default:
+                return Decoder.x(decoded) + 1;
+        }
+    }
+
+    /**
+     * @return The address after the instruction at next, which is four bytes long if it is XO-CHIP's F000 NNNN
+     */
+    private short skip(int m, short next) {
+        boolean longLoad = MEMORY[address(m, next)] == (byte) 0xF0 && MEMORY[address(m, next + 1)] == 0;
+        return (short) (longLoad ? next + 4 : next + 2);
+    }
+
+    private byte draw(int m, int X, int Y, int N, boolean clip) {
+        int screen = m * SCREEN_HEIGHT;
+        int shift = X % SCREEN_WIDTH;
+        int top = Y % SCREEN_HEIGHT;
+        int rows = N == 0 ? 16 : N;
+        if (clip) {
+            rows = Math.min(rows, SCREEN_HEIGHT - top);
+        }
+        long collisions = 0;
+        for (int i = 0; i < rows; i++) {
+            // Rows of 8 pixels, or 16 rows of 16 pixels for DXY0
+            long bits;
+            if (N == 0) {
+                int row = I[m] + 2 * i;
+                bits = ((MEMORY[address(m, row)] & 0xFFL) << 8) | (MEMORY[address(m, row + 1)] & 0xFFL);
+            } else {
+                bits = MEMORY[address(m, I[m] + i)] & 0xFFL;
+            }
+            bits <<= SCREEN_WIDTH - (N == 0 ? 16 : 8);
+            long sprite = clip ? bits >>> shift : Long.rotateRight(bits, shift);
+            if (sprite != 0) {
+                int row = screen + (top + i) % SCREEN_HEIGHT;
+                collisions |= SCREEN_BUFFER[row] & sprite;
+                SCREEN_BUFFER[row] ^= sprite;
+            }
+        }
+        return (byte) ((collisions != 0) ? 0x1 : 0x0);
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getPC(int machine) {
+        return PC[machine] & 0xFFFF;
+    }
+
+    public int getI(int machine) {
+        return I[machine] & 0xFFFF;
+    }
+
+    public int getRegister(int machine, int x) {
+        return V[machine * NUMBER_REGISTERS + x] & 0xFF;
+    }
+
+    public int getDelayTimer(int machine) {
+        return delayTimer[machine] & 0xFF;
+    }
+
+    public int getSoundTimer(int machine) {
+        return soundTimer[machine] & 0xFF;
+    }
+
+    /**
+     * @return The pixels of a row of a machine's screen, the leftmost pixel in the most significant bit
+     */
+    public long getScreenRow(int machine, int y) {
+        return SCREEN_BUFFER[machine * SCREEN_HEIGHT + y];
+    }
+
+    public long getCycleCount(int machine) {
+        return cycleCount[machine];
+    }
+
+    public long getTotalCycleCount() {
+        long total = 0;
+        for (int m = 0; m < size; m++) {
+            total += cycleCount[m];
+        }
+        return total;
+    }
+
+    /**
+     * @return True if the machine stopped where a VirtualMachine would have thrown
+     */
+    public boolean isFaulted(int machine) {
+        return faulted[machine];
+    }
+}
@@ -0,0 +1,92 @@
+package me.vkandola.emulator;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Runs many copies of a ROM on a {@link BatchMachine}, each holding down a different set of keys. Checks a sample of
+ * them against {@link VirtualMachine}, then reports aggregate instructions per second for a growing number of threads.
+ * <p>
+ * Usage: {@code BatchRunner <rom> <machines> <cycles>}
+ */
+public class BatchRunner {
+    // Machines checked against VirtualMachine
+    private static final int SAMPLE_SIZE = 8;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.println("Usage: BatchRunner <rom> <machines> <cycles>");
+            return;
+        }
+        String rom = args[0];
+        int machines = Integer.parseInt(args[1]);
+        long cycles = Long.parseLong(args[2]);
+
+        verify(rom, Math.min(machines, SAMPLE_SIZE), cycles);
+
+        int processors = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; ; threads = Math.min(threads * 2, processors)) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            BatchMachine batch = createBatch(rom, machines, pool);
+
+            long start = System.nanoTime();
+            long executed = batch.runFor(cycles);
+            long elapsed = System.nanoTime() - start;
+            pool.shutdown();
+
+            System.out.printf("[Batch] %d machines, %d threads: %d cycles in %.3f ms, %.2f MIPS\n",
+                    machines, threads, executed, elapsed / 1e6, executed * 1e3 / elapsed);
+            if (threads == processors) {
+                break;
+            }
+        }
+    }
+
+    private static BatchMachine createBatch(String rom, int machines, ForkJoinPool pool) throws Exception {
+        BatchMachine batch = new BatchMachine(machines, pool);
+        batch.loadROM(rom);
+        for (int m = 0; m < machines; m++) {
+            batch.setKeys(m, keysFor(m));
+        }
+        return batch;
+    }
+
+    private static int keysFor(int machine) {
+        return (machine * 0x9E37) & 0xFFFF;
+    }
+
+    private static void verify(String rom, int machines, long cycles) throws Exception {
+        BatchMachine batch = createBatch(rom, machines, ForkJoinPool.commonPool());
+        batch.runFor(cycles);
+
+        for (int m = 0; m < machines; m++) {
+            VirtualMachine vm = new VirtualMachine();
+            vm.loadROM(rom);
+            vm.setKeys(keysFor(m));
+
+            boolean faulted = false;
+            try {
+                // A machine waiting on FX0A retries it on every call, as the batch machines do
+                while (vm.getCycleCount() < cycles) {
+                    vm.runFor(cycles - vm.getCycleCount());
+                }
+            } catch (RuntimeException e) {
+                faulted = true;
+            }
+
+            boolean same = faulted == batch.isFaulted(m)
+                    && vm.getCycleCount() == batch.getCycleCount(m)
+                    && vm.getPC() == batch.getPC(m)
+                    && vm.getI() == batch.getI(m)
+                    && vm.getDelayTimer() == batch.getDelayTimer(m)
+                    && vm.getSoundTimer() == batch.getSoundTimer(m);
+            for (int x = 0; x < VirtualMachine.NUMBER_REGISTERS; x++) {
+                same &= vm.getRegister(x) == batch.getRegister(m, x);
+            }
+            for (int y = 0; y < VirtualMachine.SCREEN_HEIGHT; y++) {
+                same &= vm.getScreenRow(y) == batch.getScreenRow(m, y);
+            }
+            System.out.printf("[Batch] Machine %d %s VirtualMachine%s\n", m, same ? "matches" : "DIFFERS from",
+                    faulted ? " (both faulted)" : "");
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package me.vkandola.emulator;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free bounded queue of bytes from one producer thread to one consumer thread.
+ * <p>
+ * Each side owns one counter and only reads the other's, so neither ever waits: a full ring refuses the byte and an
+ * empty one returns nothing. The counters only grow and are masked into the array, whose length is a power of two.
+ */
+public class ByteRing {
+    private final byte[] buffer;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); // Next to take, only written by the consumer
+    private final AtomicLong tail = new AtomicLong(); // Next to fill, only written by the producer
+
+    /**
+     * @param capacity Bytes the ring holds, rounded up to a power of two
+     */
+    public ByteRing(int capacity) {
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Capacity out of range: " + capacity);
+        }
+        int length = 1;
+        while (length < capacity) {
+            length <<= 1;
+        }
+        buffer = new byte[length];
+        mask = buffer.length - 1;
+    }
+
+    /**
+     * Producer side.
+     *
+     * @return False if the ring is full and the byte was not added
+     */
+    public boolean offer(byte value) {
+        long t = tail.get();
+        if (t - head.get() == buffer.length) {
+            return false;
+        }
+        buffer[(int) t & mask] = value;
+        // Release the byte before the consumer can see the new tail
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Consumer side.
+     *
+     * @return The oldest byte as 0 to 255, or -1 if the ring is empty
+     */
+    public int poll() {
+        long h = head.get();
+        if (h == tail.get()) {
+            return -1;
+        }
+        int value = buffer[(int) h & mask] & 0xFF;
+        head.lazySet(h + 1);
+        return value;
+    }
+
+    /**
+     * @return Bytes waiting, exact only on the consumer side
+     */
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+}
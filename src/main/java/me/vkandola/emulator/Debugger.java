@@ -0,0 +1,232 @@
+package me.vkandola.emulator;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Breakpoints on instruction addresses, optionally conditional, and watchpoints on writes to memory. Attach one with
+ * {@link VirtualMachine#setDebugger(Debugger)}, then step with {@link VirtualMachine#stepInstruction()} and
+ * {@link VirtualMachine#stepOver()}.
+ * <p>
+ * While anything is armed the machine runs every instruction through its interpreter and checks the breakpoint
+ * bitmap before each one, as when profiling. With nothing armed it stays on its fast path, compiled blocks and idle
+ * loop skipping included, and only a memory write looks at the debugger.
+ * <p>
+ * A run stops before an instruction at a breakpoint whose condition holds, or after an instruction that wrote to a
+ * watched address, and returns early as it does for a key wait. Running again carries on from there, past the
+ * breakpoint it stopped at.
+ */
+public class Debugger {
+    public enum Stop {
+        /**
+         * Before the instruction at the breakpoint.
+         */
+        BREAKPOINT,
+        /**
+         * After the instruction that wrote to the watched address.
+         */
+        WATCHPOINT
+    }
+
+    // Bit per address, in longs
+    private final long[] BREAKPOINTS = new long[VirtualMachine.MEMORY_SIZE / Long.SIZE];
+    private final long[] WATCHED = new long[VirtualMachine.MEMORY_SIZE / Long.SIZE];
+    private final Map<Integer, Predicate<VirtualMachine>> conditions = new HashMap<>();
+    private int breakpoints;
+    private int watched;
+    private VirtualMachine vm;
+
+    private Stop stop;
+    private int stopAddress;
+    private long stopCycle;
+    // The breakpoint last stopped at, or stepped from, which the next instruction runs past
+    private int resumeAddress = -1;
+    private long resumeCycle;
+
+    /**
+     * Stops before the instruction at an address every time it is reached.
+     */
+    public void addBreakpoint(int address) {
+        addBreakpoint(address, null);
+    }
+
+    /**
+     * Stops before the instruction at an address when it is reached and the condition holds, replacing any
+     * breakpoint already there.
+     *
+     * @param condition Tested with the machine as it is before the instruction, or null to always stop
+     */
+    public void addBreakpoint(int address, Predicate<VirtualMachine> condition) {
+        if (!isSet(BREAKPOINTS, address)) {
+            BREAKPOINTS[address >>> 6] |= 1L << address;
+            breakpoints++;
+        }
+        if (condition == null) {
+            conditions.remove(address);
+        } else {
+            conditions.put(address, condition);
+        }
+        armedChanged();
+    }
+
+    public void removeBreakpoint(int address) {
+        if (isSet(BREAKPOINTS, address)) {
+            BREAKPOINTS[address >>> 6] &= ~(1L << address);
+            breakpoints--;
+            conditions.remove(address);
+            armedChanged();
+        }
+    }
+
+    /**
+     * @return A breakpoint condition, true when VX holds the value
+     */
+    public static Predicate<VirtualMachine> whenRegister(int x, int value) {
+        return vm -> vm.getRegister(x) == (value & 0xFF);
+    }
+
+    /**
+     * @return A breakpoint condition, true when I holds the value
+     */
+    public static Predicate<VirtualMachine> whenI(int value) {
+        return vm -> vm.getI() == value;
+    }
+
+    /**
+     * Stops after any instruction that writes to an address in the range, such as FX33 or FX55.
+     *
+     * @param from The first address watched
+     * @param to   The last address watched
+     */
+    public void addWatchpoint(int from, int to) {
+        for (int address = from; address <= to; address++) {
+            if (!isSet(WATCHED, address)) {
+                WATCHED[address >>> 6] |= 1L << address;
+                watched++;
+            }
+        }
+        armedChanged();
+    }
+
+    /**
+     * Stops watching every address in the range, whichever watchpoint covered it.
+     */
+    public void removeWatchpoint(int from, int to) {
+        for (int address = from; address <= to; address++) {
+            if (isSet(WATCHED, address)) {
+                WATCHED[address >>> 6] &= ~(1L << address);
+                watched--;
+            }
+        }
+        armedChanged();
+    }
+
+    /**
+     * Removes every breakpoint and watchpoint.
+     */
+    public void clear() {
+        Arrays.fill(BREAKPOINTS, 0);
+        Arrays.fill(WATCHED, 0);
+        conditions.clear();
+        breakpoints = 0;
+        watched = 0;
+        armedChanged();
+    }
+
+    /**
+     * @return True if any breakpoint or watchpoint is set
+     */
+    public boolean isArmed() {
+        return breakpoints > 0 || watched > 0;
+    }
+
+    /**
+     * @return Why the last run or step stopped early, or null if it didn't
+     */
+    public Stop getStop() {
+        return stop;
+    }
+
+    /**
+     * @return The address of the breakpoint, or the watched address written to, the last run stopped at
+     */
+    public int getStopAddress() {
+        return stopAddress;
+    }
+
+    /**
+     * @return The machine's cycle count when the last run stopped
+     */
+    public long getStopCycle() {
+        return stopCycle;
+    }
+
+    void attach(VirtualMachine vm) {
+        this.vm = vm;
+    }
+
+    /**
+     * Forgets the last stop, called as the machine starts a run or step.
+     */
+    void resume() {
+        stop = null;
+    }
+
+    /**
+     * Lets the instruction about to run go past any breakpoint at its address, called before a single step.
+     */
+    void resumeAt(int pc, long cycle) {
+        resumeAddress = pc;
+        resumeCycle = cycle;
+    }
+
+    /**
+     * Checks for a breakpoint before the machine runs an instruction.
+     *
+     * @return True if the machine should stop instead
+     */
+    boolean atBreakpoint(VirtualMachine vm, int pc, long cycle) {
+        if (!isSet(BREAKPOINTS, pc)) {
+            return false;
+        }
+        if (pc == resumeAddress && cycle == resumeCycle) {
+            // Carrying on from this breakpoint
+            resumeAddress = -1;
+            return false;
+        }
+        Predicate<VirtualMachine> condition = conditions.get(pc);
+        if (condition != null && !condition.test(vm)) {
+            return false;
+        }
+        stopAt(Stop.BREAKPOINT, pc, cycle);
+        resumeAt(pc, cycle);
+        return true;
+    }
+
+    /**
+     * Called by the machine whenever memory is written, armed or not.
+     */
+    void written(int address, long cycle) {
+        if (watched > 0 && isSet(WATCHED, address) && stop == null) {
+            stopAt(Stop.WATCHPOINT, address, cycle);
+        }
+    }
+
+    private void stopAt(Stop stop, int address, long cycle) {
+        this.stop = stop;
+        this.stopAddress = address;
+        this.stopCycle = cycle;
+    }
+
+    private void armedChanged() {
+        if (vm != null) {
+            vm.updateInstrumented();
+        }
+    }
+
+    private static boolean isSet(long[] bits, int address) {
+        return (bits[address >>> 6] & (1L << address)) != 0;
+    }
+}
@@ -0,0 +1,287 @@
+package me.vkandola.emulator;
+
+/**
+ * Decodes raw CHIP-8, SUPER-CHIP and XO-CHIP opcodes into a packed instruction word, so operands are only masked
+ * out once per memory location instead of once per cycle.
+ * <p>
+ * Layout of a decoded word, where 0 is reserved to mean "not decoded yet":
+ * <pre>
+ *   bits 28-31  X
+ *   bits 24-27  Y
+ *   bits 8-23   N, NN or NNN (the raw opcode for unknown instructions)
+ *   bits 0-7    Operation
+ * </pre>
+ */
+final class Decoder {
+    static final int NOT_DECODED = 0;
+
+    // Operations, kept dense so the interpreter's switch compiles to a jump table.
+    static final int OP_UNKNOWN = 1;
+    static final int OP_CLS = 2;        // 00E0
+    static final int OP_RET = 3;        // 00EE
+    static final int OP_JP = 4;         // 1NNN
+    static final int OP_CALL = 5;       // 2NNN
+    static final int OP_SE_VX_NN = 6;   // 3XNN
+    static final int OP_SNE_VX_NN = 7;  // 4XNN
+    static final int OP_SE_VX_VY = 8;   // 5XY0
+    static final int OP_LD_VX_NN = 9;   // 6XNN
+    static final int OP_ADD_VX_NN = 10; // 7XNN
+    static final int OP_LD_VX_VY = 11;  // 8XY0
+    static final int OP_OR = 12;        // 8XY1
+    static final int OP_AND = 13;       // 8XY2
+    static final int OP_XOR = 14;       // 8XY3
+    static final int OP_ADD_VX_VY = 15; // 8XY4
+    static final int OP_SUB = 16;       // 8XY5
+    static final int OP_SHR = 17;       // 8XY6
+    static final int OP_SUBN = 18;      // 8XY7
+    static final int OP_SHL = 19;       // 8XYE
+    static final int OP_SNE_VX_VY = 20; // 9XY0
+    static final int OP_LD_I = 21;      // ANNN
+    static final int OP_JP_V0 = 22;     // BNNN
+    static final int OP_RND = 23;       // CXNN
+    static final int OP_DRW = 24;       // DXYN
+    static final int OP_SKP = 25;       // EX9E
+    static final int OP_SKNP = 26;      // EXA1
+    static final int OP_LD_VX_DT = 27;  // FX07
+    static final int OP_LD_VX_K = 28;   // FX0A
+    static final int OP_LD_DT = 29;     // FX15
+    static final int OP_LD_ST = 30;     // FX18
+    static final int OP_ADD_I = 31;     // FX1E
+    static final int OP_LD_F = 32;      // FX29
+    static final int OP_LD_B = 33;      // FX33
+    static final int OP_STORE = 34;     // FX55
+    static final int OP_LOAD = 35;      // FX65
+    // SUPER-CHIP
+    static final int OP_SCD = 36;       // 00CN
+    static final int OP_SCR = 37;       // 00FB
+    static final int OP_SCL = 38;       // 00FC
+    static final int OP_EXIT = 39;      // 00FD
+    static final int OP_LOW = 40;       // 00FE
+    static final int OP_HIGH = 41;      // 00FF
+    static final int OP_LD_HF = 42;     // FX30
+    static final int OP_SAVE_FLAGS = 43; // FX75
+    static final int OP_LOAD_FLAGS = 44; // FX85
+    // XO-CHIP
+    static final int OP_SCU = 45;       // 00DN
+    static final int OP_SAVE_RANGE = 46; // 5XY2
+    static final int OP_LOAD_RANGE = 47; // 5XY3
+    static final int OP_LD_I_LONG = 48; // F000 NNNN
+    static final int OP_PLANE = 49;     // FN01
+    // Variants of the operations above for other platforms, only ever chosen by a QuirkProfile
+    static final int OP_OR_RESET_VF = 50;          // 8XY1, VF cleared
+    static final int OP_AND_RESET_VF = 51;         // 8XY2, VF cleared
+    static final int OP_XOR_RESET_VF = 52;         // 8XY3, VF cleared
+    static final int OP_SHR_VX = 53;               // 8XY6, VX shifted in place
+    static final int OP_SHL_VX = 54;               // 8XYE, VX shifted in place
+    static final int OP_STORE_INCREMENT_BY_X = 55; // FX55, I left on VX
+    static final int OP_LOAD_INCREMENT_BY_X = 56;  // FX65, I left on VX
+    static final int OP_STORE_KEEP_I = 57;         // FX55, I unchanged
+    static final int OP_LOAD_KEEP_I = 58;          // FX65, I unchanged
+    static final int OP_DRW_CLIP = 59;             // DXYN, clipped at the edges
+    static final int OP_JP_VX = 60;                // BXNN
+    static final int NUM_OPS = 61;
+
+    // Opcode pattern of each operation, for reports
+    private static final String[] PATTERNS = {
+            null, "????", "00E0", "00EE", "1NNN", "2NNN", "3XNN", "4XNN", "5XY0", "6XNN", "7XNN", "8XY0", "8XY1",
+            "8XY2", "8XY3", "8XY4", "8XY5", "8XY6", "8XY7", "8XYE", "9XY0", "ANNN", "BNNN", "CXNN", "DXYN", "EX9E",
+            "EXA1", "FX07", "FX0A", "FX15", "FX18", "FX1E", "FX29", "FX33", "FX55", "FX65", "00CN", "00FB", "00FC",
+            "00FD", "00FE", "00FF", "FX30", "FX75", "FX85", "00DN", "5XY2", "5XY3", "F000", "FN01", "8XY1", "8XY2",
+            "8XY3", "8XY6", "8XYE", "FX55", "FX65", "FX55", "FX65", "DXYN", "BXNN"
+    };
+
+    private Decoder() {
+    }
+
+    /**
+     * Decodes a raw opcode.
+     *
+     * @param opcode The 16-bit opcode, as fetched from memory
+     * @return The decoded instruction word, never {@link #NOT_DECODED}
+     */
+    static int decode(int opcode) {
+        int X = (opcode & 0x0F00) >> 8;
+        int Y = (opcode & 0x00F0) >> 4;
+        int N = opcode & 0x000F;
+        int NN = opcode & 0x00FF;
+        int NNN = opcode & 0x0FFF;
+
+        switch (opcode & 0xF000) {
+            case (0x0000):
+                switch (NNN) {
+                    case (0x00E0):
+                        return pack(OP_CLS, 0, 0, 0);
+                    case (0x00EE):
+                        return pack(OP_RET, 0, 0, 0);
+                    case (0x00FB):
+                        return pack(OP_SCR, 0, 0, 0);
+                    case (0x00FC):
+                        return pack(OP_SCL, 0, 0, 0);
+                    case (0x00FD):
+                        return pack(OP_EXIT, 0, 0, 0);
+                    case (0x00FE):
+                        return pack(OP_LOW, 0, 0, 0);
+                    case (0x00FF):
+                        return pack(OP_HIGH, 0, 0, 0);
+                    default:
+                        if ((NNN & 0xFF0) == 0x0C0) {
+                            return pack(OP_SCD, 0, 0, N);
+                        }
+                        if ((NNN & 0xFF0) == 0x0D0) {
+                            return pack(OP_SCU, 0, 0, N);
+                        }
+                        return unknown(opcode);
+                }
+            case (0x1000):
+                return pack(OP_JP, 0, 0, NNN);
+            case (0x2000):
+                return pack(OP_CALL, 0, 0, NNN);
+            case (0x3000):
+                return pack(OP_SE_VX_NN, X, 0, NN);
+            case (0x4000):
+                return pack(OP_SNE_VX_NN, X, 0, NN);
+            case (0x5000):
+                switch (N) {
+                    case (0x2):
+                        return pack(OP_SAVE_RANGE, X, Y, 0);
+                    case (0x3):
+                        return pack(OP_LOAD_RANGE, X, Y, 0);
+                    default:
+                        return pack(OP_SE_VX_VY, X, Y, 0);
+                }
+            case (0x6000):
+                return pack(OP_LD_VX_NN, X, 0, NN);
+            case (0x7000):
+                return pack(OP_ADD_VX_NN, X, 0, NN);
+            case (0x8000):
+                switch (N) {
+                    case (0x0):
+                        return pack(OP_LD_VX_VY, X, Y, 0);
+                    case (0x1):
+                        return pack(OP_OR, X, Y, 0);
+                    case (0x2):
+                        return pack(OP_AND, X, Y, 0);
+                    case (0x3):
+                        return pack(OP_XOR, X, Y, 0);
+                    case (0x4):
+                        return pack(OP_ADD_VX_VY, X, Y, 0);
+                    case (0x5):
+                        return pack(OP_SUB, X, Y, 0);
+                    case (0x6):
+                        return pack(OP_SHR, X, Y, 0);
+                    case (0x7):
+                        return pack(OP_SUBN, X, Y, 0);
+                    case (0xE):
+                        return pack(OP_SHL, X, Y, 0);
+                    default:
+                        return unknown(opcode);
+                }
+            case (0x9000):
+                return (N == 0x0) ? pack(OP_SNE_VX_VY, X, Y, 0) : unknown(opcode);
+            case (0xA000):
+                return pack(OP_LD_I, 0, 0, NNN);
+            case (0xB000):
+                return pack(OP_JP_V0, 0, 0, NNN);
+            case (0xC000):
+                return pack(OP_RND, X, 0, NN);
+            case (0xD000):
+                return pack(OP_DRW, X, Y, N);
+            case (0xE000):
+                switch (NN) {
+                    case (0x009E):
+                        return pack(OP_SKP, X, 0, 0);
+                    case (0x00A1):
+                        return pack(OP_SKNP, X, 0, 0);
+                    default:
+                        return unknown(opcode);
+                }
+            default: // 0xF000
+                switch (NN) {
+                    case (0x0000):
+                        // The address is the next word, read when executed
+                        return (X == 0) ? pack(OP_LD_I_LONG, 0, 0, 0) : unknown(opcode);
+                    case (0x0001):
+                        return pack(OP_PLANE, X, 0, 0);
+                    case (0x0007):
+                        return pack(OP_LD_VX_DT, X, 0, 0);
+                    case (0x000A):
+                        return pack(OP_LD_VX_K, X, 0, 0);
+                    case (0x0015):
+                        return pack(OP_LD_DT, X, 0, 0);
+                    case (0x0018):
+                        return pack(OP_LD_ST, X, 0, 0);
+                    case (0x001E):
+                        return pack(OP_ADD_I, X, 0, 0);
+                    case (0x0029):
+                        return pack(OP_LD_F, X, 0, 0);
+                    case (0x0033):
+                        return pack(OP_LD_B, X, 0, 0);
+                    case (0x0055):
+                        return pack(OP_STORE, X, 0, 0);
+                    case (0x0065):
+                        return pack(OP_LOAD, X, 0, 0);
+                    case (0x0030):
+                        return pack(OP_LD_HF, X, 0, 0);
+                    case (0x0075):
+                        return pack(OP_SAVE_FLAGS, X, 0, 0);
+                    case (0x0085):
+                        return pack(OP_LOAD_FLAGS, X, 0, 0);
+                    default:
+                        return unknown(opcode);
+                }
+        }
+    }
+
+    private static int pack(int op, int X, int Y, int operand) {
+        return (X << 28) | (Y << 24) | (operand << 8) | op;
+    }
+
+    private static int unknown(int opcode) {
+        return pack(OP_UNKNOWN, 0, 0, opcode & 0xFFFF);
+    }
+
+    /**
+     * @return The opcode pattern of an operation, such as "DXYN"
+     */
+    static String pattern(int op) {
+        return PATTERNS[op];
+    }
+
+    static int op(int decoded) {
+        return decoded & 0xFF;
+    }
+
+    static int x(int decoded) {
+        return decoded >>> 28;
+    }
+
+    static int y(int decoded) {
+        return (decoded >>> 24) & 0xF;
+    }
+
+    static int n(int decoded) {
+        return (decoded >>> 8) & 0xF;
+    }
+
+    static int nn(int decoded) {
+        return (decoded >>> 8) & 0xFF;
+    }
+
+    static int nnn(int decoded) {
+        return (decoded >>> 8) & 0xFFF;
+    }
+
+    /**
+     * @return The raw opcode of an {@link #OP_UNKNOWN} instruction
+     */
+    static int opcode(int decoded) {
+        return (decoded >>> 8) & 0xFFFF;
+    }
+
+    /**
+     * @return The decoded instruction with its operation replaced, operands as they were
+     */
+    static int withOp(int decoded, int op) {
+        return (decoded & ~0xFF) | op;
+    }
+}
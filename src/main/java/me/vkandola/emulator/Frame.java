@@ -0,0 +1,97 @@
+package me.vkandola.emulator;
+
+import java.util.Arrays;
+
+/**
+ * A copy of the screen buffer, handed from the emulation thread to whatever displays or records it.
+ */
+public class Frame {
+    // Brightness of each colour, bit p of a colour set if the pixel is set in plane p
+    static final byte[] LUMINANCE = {0, (byte) 255, (byte) 0x80, (byte) 0xC0};
+
+    private final long[] words = new long[VirtualMachine.SCREEN_WORDS];
+    private boolean hires;
+    private long cycle;
+
+    /**
+     * Overwrites this frame with the current contents of a machine's screen.
+     */
+    public void copyFrom(VirtualMachine vm) {
+        vm.copyScreen(words);
+        hires = vm.isHighResolution();
+        cycle = vm.getCycleCount();
+    }
+
+    /**
+     * Overwrites this frame with another.
+     */
+    public void copyFrom(Frame frame) {
+        System.arraycopy(frame.words, 0, words, 0, words.length);
+        hires = frame.hires;
+        cycle = frame.cycle;
+    }
+
+    /**
+     * @return True if both frames show the same picture, whenever they were taken
+     */
+    public boolean sameScreen(Frame frame) {
+        return hires == frame.hires && Arrays.equals(words, frame.words);
+    }
+
+    /**
+     * @return True if row y is the same in both frames, in every plane, whatever their resolutions
+     */
+    public boolean sameRow(Frame frame, int y) {
+        for (int plane = 0; plane < VirtualMachine.PLANE_COUNT; plane++) {
+            int index = plane * VirtualMachine.PLANE_WORDS + y * VirtualMachine.ROW_WORDS;
+            for (int word = 0; word < VirtualMachine.ROW_WORDS; word++) {
+                if (words[index + word] != frame.words[index + word]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The machine's cycle count when the screen was copied
+     */
+    public long getCycle() {
+        return cycle;
+    }
+
+    public boolean isHighResolution() {
+        return hires;
+    }
+
+    public int getWidth() {
+        return hires ? VirtualMachine.HIRES_WIDTH : VirtualMachine.SCREEN_WIDTH;
+    }
+
+    public int getHeight() {
+        return hires ? VirtualMachine.HIRES_HEIGHT : VirtualMachine.SCREEN_HEIGHT;
+    }
+
+    /**
+     * @see VirtualMachine#getScreenWord(int, int, int)
+     */
+    public long getWord(int plane, int y, int word) {
+        return words[plane * VirtualMachine.PLANE_WORDS + y * VirtualMachine.ROW_WORDS + word];
+    }
+
+    /**
+     * @return The pixel's colour, bit p set if it is set in plane p
+     */
+    public int getPixel(int x, int y) {
+        int index = y * VirtualMachine.ROW_WORDS + x / Long.SIZE;
+        int color = 0;
+        for (int plane = 0; plane < VirtualMachine.PLANE_COUNT; plane++) {
+            color |= (int) ((words[plane * VirtualMachine.PLANE_WORDS + index] << x) >>> (Long.SIZE - 1)) << plane;
+        }
+        return color;
+    }
+
+    public boolean isPixelSet(int x, int y) {
+        return getPixel(x, y) != 0;
+    }
+}
@@ -0,0 +1,263 @@
+package me.vkandola.emulator;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Records every picture a machine shows, for bug reports and datasets, and encodes it on a background thread so the
+ * machine is barely slowed down. Meant to be called from a host's {@link Host#refreshScreen(VirtualMachine)}.
+ * <p>
+ * The machine's thread copies the screen into a {@link Frame} taken from a fixed pool and queues that frame itself
+ * for the encoder thread, which renders it to an image for a {@link FrameSink} and then returns it to the pool.
+ * Nothing is allocated while recording and the screen is copied just once. A screen that looks the same as the last
+ * frame recorded, say a sprite erased and drawn again in place, is not queued, the last frame is shown for longer.
+ * <p>
+ * When the encoder falls behind and the pool runs dry, the {@link Policy} decides whether the machine waits for it.
+ */
+public class FrameRecorder implements Closeable {
+    public enum Policy {
+        /**
+         * Skip the new picture, the last frame recorded is shown in its place. The machine never waits.
+         */
+        DROP,
+        /**
+         * Wait for the encoder to finish a frame, slowing the machine to the encoder's pace. Every picture is kept.
+         */
+        BLOCK
+    }
+
+    public static final int DEFAULT_SCALE = 4;
+    public static final int DEFAULT_POOLED_FRAMES = 64;
+    private static final int PIXELS_PER_BYTE = Byte.SIZE / VirtualMachine.PLANE_COUNT;
+
+    private final FrameSink sink;
+    private final VirtualMachine vm;
+    private final Policy policy;
+    private final int cyclesPerSecond;
+    private final BlockingQueue<Frame> pool;
+    private final BlockingQueue<Frame> queue;
+    private final Frame end = new Frame(); // Queued by close, after the last frame
+    private final Thread thread;
+    private volatile long endCycle;
+
+    // Machine thread only. The last frame is only read by either thread, and the encoder only frees it once a newer
+    // one was queued.
+    private Frame next;
+    private Frame last;
+    private long capturedFrames;
+    private long duplicateFrames;
+    private long droppedFrames;
+    private long blockedNanos;
+
+    // Encoder thread only
+    private final int scale;
+    private final BufferedImage image;
+    private final byte[] pixels; // The image's own, packed four pixels to a byte, leftmost in the top bits
+    private final byte[] row;
+    private volatile long writtenFrames;
+
+    public FrameRecorder(FrameSink sink, VirtualMachine vm, Policy policy) {
+        this(sink, vm, policy, DEFAULT_SCALE, DEFAULT_POOLED_FRAMES);
+    }
+
+    /**
+     * Starts the encoder thread, which opens the sink. Frames are rendered at the high resolution size, low
+     * resolution pictures with each pixel doubled, so that the size never changes.
+     *
+     * @param scale        Image pixels per high resolution pixel, in each direction
+     * @param pooledFrames Frames to record into, the encoder may be this many frames behind less two
+     */
+    public FrameRecorder(FrameSink sink, VirtualMachine vm, Policy policy, int scale, int pooledFrames) {
+        if (pooledFrames < 2) {
+            throw new IllegalArgumentException("At least two frames are needed, one for each thread");
+        }
+        this.sink = sink;
+        this.vm = vm;
+        this.policy = policy;
+        this.cyclesPerSecond = vm.getInstructionsPerFrame() * FrameScheduler.FRAMES_PER_SECOND;
+        this.scale = scale;
+        pool = new ArrayBlockingQueue<>(pooledFrames);
+        queue = new ArrayBlockingQueue<>(pooledFrames + 1);
+        for (int i = 1; i < pooledFrames; i++) {
+            pool.add(new Frame());
+        }
+        next = new Frame();
+
+        IndexColorModel colors = new IndexColorModel(VirtualMachine.PLANE_COUNT, Frame.LUMINANCE.length,
+                Frame.LUMINANCE, Frame.LUMINANCE, Frame.LUMINANCE);
+        image = new BufferedImage(VirtualMachine.HIRES_WIDTH * scale, VirtualMachine.HIRES_HEIGHT * scale,
+                BufferedImage.TYPE_BYTE_BINARY, colors);
+        pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        row = new byte[image.getWidth() / PIXELS_PER_BYTE];
+
+        thread = new Thread(this::encode, "Frame encoder");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Records the machine's screen as it is now.
+     */
+    public void capture() {
+        capturedFrames++;
+        if (next == null && (next = takeFrame()) == null) {
+            droppedFrames++;
+            return;
+        }
+        next.copyFrom(vm);
+        if (last != null && next.sameScreen(last)) {
+            duplicateFrames++;
+            return;
+        }
+        last = next;
+        queue.add(next);
+        next = pool.poll();
+    }
+
+    private Frame takeFrame() {
+        Frame frame = pool.poll();
+        if (frame != null || policy == Policy.DROP) {
+            return frame;
+        }
+        long start = System.nanoTime();
+        boolean interrupted = false;
+        while (frame == null) {
+            try {
+                frame = pool.take();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        blockedNanos += System.nanoTime() - start;
+        return frame;
+    }
+
+    /**
+     * @return Pictures the machine showed while recording, duplicates and dropped ones included
+     */
+    public long getCapturedFrames() {
+        return capturedFrames;
+    }
+
+    /**
+     * @return Pictures not queued because they looked the same as the last frame
+     */
+    public long getDuplicateFrames() {
+        return duplicateFrames;
+    }
+
+    /**
+     * @return Pictures lost because the encoder was too far behind, always 0 with {@link Policy#BLOCK}
+     */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * @return Nanoseconds the machine spent waiting for the encoder, always 0 with {@link Policy#DROP}
+     */
+    public long getBlockedNanos() {
+        return blockedNanos;
+    }
+
+    /**
+     * @return Frames handed to the sink so far
+     */
+    public long getWrittenFrames() {
+        return writtenFrames;
+    }
+
+    /**
+     * Encodes the frames already queued, the last one shown up to the machine's current cycle, then stops the
+     * encoder thread and closes the sink. Called on the machine's thread, after which nothing may be captured.
+     */
+    @Override
+    public void close() throws IOException {
+        endCycle = vm.getCycleCount();
+        queue.add(end);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Encoder thread. A frame is held back until the next one arrives, which is when its time on screen is known.
+     */
+    private void encode() {
+        boolean open = true;
+        try {
+            sink.open(cyclesPerSecond);
+        } catch (IOException | RuntimeException e) {
+            System.out.printf("[Recorder] Unable to open %s, recording nothing: %s\n",
+                    sink.getClass().getSimpleName(), e);
+            open = false;
+        }
+
+        Frame pending = null;
+        while (true) {
+            Frame frame;
+            try {
+                frame = queue.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            if (pending != null) {
+                if (open) {
+                    render(pending);
+                    try {
+                        sink.write(image, pending.getCycle(), frame == end ? endCycle : frame.getCycle());
+                        writtenFrames++;
+                    } catch (IOException | RuntimeException e) {
+                        System.out.printf("[Recorder] Writing to %s failed, recording nothing: %s\n",
+                                sink.getClass().getSimpleName(), e);
+                        open = false;
+                    }
+                }
+                pool.add(pending);
+            }
+            if (frame == end) {
+                break;
+            }
+            pending = frame;
+        }
+
+        try {
+            sink.close();
+        } catch (IOException | RuntimeException e) {
+            System.out.printf("[Recorder] Closing %s failed: %s\n", sink.getClass().getSimpleName(), e);
+        }
+    }
+
+    private void render(Frame frame) {
+        // Size of a machine pixel in the image
+        int size = scale * VirtualMachine.HIRES_WIDTH / frame.getWidth();
+        for (int y = 0; y < frame.getHeight(); y++) {
+            Arrays.fill(row, (byte) 0);
+            for (int x = 0, pixel = 0; x < frame.getWidth(); x++) {
+                int color = frame.getPixel(x, y);
+                if (color == 0) {
+                    pixel += size;
+                    continue;
+                }
+                for (int stop = pixel + size; pixel < stop; pixel++) {
+                    int shift = (PIXELS_PER_BYTE - 1 - pixel % PIXELS_PER_BYTE) * VirtualMachine.PLANE_COUNT;
+                    row[pixel / PIXELS_PER_BYTE] |= (byte) (color << shift);
+                }
+            }
+            for (int i = 0; i < size; i++) {
+                System.arraycopy(row, 0, pixels, (y * size + i) * row.length, row.length);
+            }
+        }
+    }
+}
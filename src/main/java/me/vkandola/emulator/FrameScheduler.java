@@ -0,0 +1,84 @@
+package me.vkandola.emulator;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs frames of a machine at 60Hz, parking the thread in between so that game speed follows the wall clock and the
+ * host CPU idles once a frame's instructions are done. Turbo mode runs frames back to back instead.
+ */
+public class FrameScheduler {
+    public static final int FRAMES_PER_SECOND = 60;
+    private static final long FRAME_NANOS = 1_000_000_000L / FRAMES_PER_SECOND;
+    // Park until this close to the deadline, then yield the rest for precision
+    private static final long SPIN_NANOS = 100_000L;
+    // Frames we may fall behind by before giving up on catching up, e.g. after the machine waited on a key
+    private static final int MAX_LAG_FRAMES = 5;
+
+    private final Runnable frame;
+    // Never cleared, so that a stop() before run() starts still stops it
+    private volatile boolean stopped;
+    private volatile boolean turbo;
+    private long frameCount;
+
+    public FrameScheduler(VirtualMachine vm) {
+        this(vm::runFrame);
+    }
+
+    /**
+     * @param frame Runs one frame, e.g. passing on input then calling {@link VirtualMachine#runFrame()}
+     */
+    public FrameScheduler(Runnable frame) {
+        this.frame = frame;
+    }
+
+    /**
+     * Runs frames on the calling thread until {@link #stop()} is called, at any point before or during this call, or
+     * the thread is interrupted.
+     */
+    public void run() {
+        long deadline = System.nanoTime();
+        while (!stopped && !Thread.currentThread().isInterrupted()) {
+            frame.run();
+            frameCount++;
+
+            long now = System.nanoTime();
+            if (turbo || now - deadline > MAX_LAG_FRAMES * FRAME_NANOS) {
+                deadline = now;
+            } else {
+                deadline += FRAME_NANOS;
+                parkUntil(deadline);
+            }
+        }
+    }
+
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * In turbo mode frames run back to back as fast as the host allows.
+     */
+    public void setTurbo(boolean turbo) {
+        this.turbo = turbo;
+    }
+
+    public boolean isTurbo() {
+        return turbo;
+    }
+
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    private void parkUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0 && !stopped
+                && !Thread.currentThread().isInterrupted()) {
+            if (remaining > SPIN_NANOS) {
+                LockSupport.parkNanos(remaining - SPIN_NANOS);
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+}
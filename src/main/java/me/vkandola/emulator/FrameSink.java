@@ -0,0 +1,32 @@
+package me.vkandola.emulator;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Somewhere for {@link FrameRecorder} to send the frames it renders. Every method is called on the encoder thread, so
+ * a sink may take as long as it needs to compress and write a frame.
+ */
+public interface FrameSink {
+    /**
+     * Called once before any frames are written.
+     *
+     * @param cyclesPerSecond Machine cycles in a second of play, to turn the cycles frames are shown for into time
+     */
+    void open(int cyclesPerSecond) throws IOException;
+
+    /**
+     * Stores a frame. The image is reused for the next call once this returns.
+     *
+     * @param image    The screen, always the same size and a {@link BufferedImage#TYPE_BYTE_BINARY} image of two bit
+     *                 pixels indexing the colours of {@link Frame#LUMINANCE}
+     * @param cycle    Cycle count the frame appeared on
+     * @param endCycle Cycle count the next frame replaced it on
+     */
+    void write(BufferedImage image, long cycle, long endCycle) throws IOException;
+
+    /**
+     * Called once after the last frame, or after {@link #open(int)} fails.
+     */
+    void close() throws IOException;
+}
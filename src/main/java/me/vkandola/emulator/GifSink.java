@@ -0,0 +1,154 @@
+package me.vkandola.emulator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+
+/**
+ * Writes frames to an animated GIF that loops forever, each frame held for as long as it was on screen.
+ * <p>
+ * GIF delays are in hundredths of a second, so frame times are rounded against the start of the recording rather
+ * than one by one, keeping the animation in step with the machine. A frame replaced within the same hundredth of a
+ * second would get no delay at all, which most viewers show as a long one, so it is left out.
+ * <p>
+ * Each frame after the first only holds the rectangle that changed since the frame before it, drawn over that frame,
+ * so a ball moving across a still screen costs a few bytes per frame rather than a whole screen.
+ */
+public class GifSink implements FrameSink {
+    private static final String FORMAT = "javax_imageio_gif_image_1.0";
+    private static final int CENTISECONDS = 100;
+
+    private final Path path;
+    private ImageOutputStream out;
+    private ImageWriter writer;
+    private int cyclesPerSecond;
+    private long shownCentiseconds = -1;
+    private boolean first = true;
+    private byte[] previous; // Pixels of the frames written so far, as shown
+
+    public GifSink(Path path) {
+        this.path = path;
+    }
+
+    @Override
+    public void open(int cyclesPerSecond) throws IOException {
+        this.cyclesPerSecond = cyclesPerSecond;
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("gif");
+        if (!writers.hasNext()) {
+            throw new IOException("No GIF writer");
+        }
+        writer = writers.next();
+        Files.deleteIfExists(path);
+        out = ImageIO.createImageOutputStream(path.toFile());
+        writer.setOutput(out);
+        writer.prepareWriteSequence(null);
+    }
+
+    @Override
+    public void write(BufferedImage image, long cycle, long endCycle) throws IOException {
+        if (shownCentiseconds < 0) {
+            // Start the clock on the first frame rather than the machine's first cycle
+            shownCentiseconds = toCentiseconds(cycle);
+        }
+        long end = toCentiseconds(endCycle);
+        if (end == shownCentiseconds) {
+            return;
+        }
+        byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        BufferedImage changed = image;
+        int left = 0;
+        int top = 0;
+        if (previous == null) {
+            previous = pixels.clone();
+        } else {
+            // Bounding box of the bytes that changed, each byte being a few pixels of a row
+            int stride = pixels.length / image.getHeight();
+            int pixelsPerByte = image.getWidth() / stride;
+            int right = -1;
+            int bottom = -1;
+            left = stride;
+            top = image.getHeight();
+            for (int y = 0; y < image.getHeight(); y++) {
+                for (int x = 0, i = y * stride; x < stride; x++, i++) {
+                    if (pixels[i] != previous[i]) {
+                        previous[i] = pixels[i];
+                        left = Math.min(left, x);
+                        right = Math.max(right, x);
+                        top = Math.min(top, y);
+                        bottom = y;
+                    }
+                }
+            }
+            if (bottom < 0) {
+                // Nothing changed since the frames left out, there still needs to be a frame to hold the delay
+                left = right = top = bottom = 0;
+            }
+            left *= pixelsPerByte;
+            changed = image.getSubimage(left, top, (right + 1) * pixelsPerByte - left, bottom + 1 - top);
+        }
+
+        IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(changed),
+                null);
+        IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(FORMAT);
+        IIOMetadataNode descriptor = child(root, "ImageDescriptor");
+        descriptor.setAttribute("imageLeftPosition", Integer.toString(left));
+        descriptor.setAttribute("imageTopPosition", Integer.toString(top));
+        IIOMetadataNode control = child(root, "GraphicControlExtension");
+        control.setAttribute("disposalMethod", "none");
+        control.setAttribute("userInputFlag", "FALSE");
+        control.setAttribute("transparentColorFlag", "FALSE");
+        control.setAttribute("delayTime", Long.toString(Math.min(end - shownCentiseconds, 0xFFFF)));
+        control.setAttribute("transparentColorIndex", "0");
+        if (first) {
+            // NETSCAPE2.0 extension, loop count 0 for forever
+            IIOMetadataNode loop = new IIOMetadataNode("ApplicationExtension");
+            loop.setAttribute("applicationID", "NETSCAPE");
+            loop.setAttribute("authenticationCode", "2.0");
+            loop.setUserObject(new byte[]{1, 0, 0});
+            child(root, "ApplicationExtensions").appendChild(loop);
+            first = false;
+        }
+        metadata.setFromTree(FORMAT, root);
+        writer.writeToSequence(new IIOImage(changed, null, metadata), null);
+        shownCentiseconds = end;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (out == null) {
+            return;
+        }
+        try {
+            writer.endWriteSequence();
+        } finally {
+            writer.dispose();
+            out.close();
+            out = null;
+        }
+    }
+
+    private long toCentiseconds(long cycle) {
+        return (cycle * CENTISECONDS + cyclesPerSecond / 2) / cyclesPerSecond;
+    }
+
+    private static IIOMetadataNode child(IIOMetadataNode parent, String name) {
+        for (int i = 0; i < parent.getLength(); i++) {
+            if (parent.item(i).getNodeName().equals(name)) {
+                return (IIOMetadataNode) parent.item(i);
+            }
+        }
+        IIOMetadataNode node = new IIOMetadataNode(name);
+        parent.appendChild(node);
+        return node;
+    }
+}
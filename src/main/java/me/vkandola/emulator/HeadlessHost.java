@@ -0,0 +1,55 @@
+package me.vkandola.emulator;
+
+/**
+ * A host with no window, keyboard or speaker, for running ROMs as fast as possible.
+ * Keeps count of the screen refreshes and the ticks the buzzer sounded for, and optionally passes the sound on to an
+ * {@link AudioOutput}, say one writing a WAV file, and the screen to a {@link FrameRecorder}.
+ */
+public class HeadlessHost implements Host {
+    private final AudioOutput audio;
+    private final FrameRecorder recorder;
+    private long refreshCount;
+    private long soundTicks;
+
+    public HeadlessHost() {
+        this(null);
+    }
+
+    public HeadlessHost(AudioOutput audio) {
+        this(audio, null);
+    }
+
+    public HeadlessHost(AudioOutput audio, FrameRecorder recorder) {
+        this.audio = audio;
+        this.recorder = recorder;
+    }
+
+    @Override
+    public void refreshScreen(VirtualMachine vm) {
+        refreshCount++;
+        if (recorder != null) {
+            recorder.capture();
+        }
+    }
+
+    @Override
+    public void tickSound(boolean playing) {
+        if (playing) {
+            soundTicks++;
+        }
+        if (audio != null) {
+            audio.tick(playing);
+        }
+    }
+
+    public long getRefreshCount() {
+        return refreshCount;
+    }
+
+    /**
+     * @return Timer ticks, 60ths of a second of machine time, the buzzer sounded for
+     */
+    public long getSoundTicks() {
+        return soundTicks;
+    }
+}
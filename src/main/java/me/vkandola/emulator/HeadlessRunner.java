@@ -0,0 +1,272 @@
+package me.vkandola.emulator;
+
+import javax.imageio.ImageIO;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Runs ROMs without a window or OpenGL context, reporting how fast each one was emulated.
+ * <p>
+ * Usage:
+ * {@code HeadlessRunner [--jit] [--rewind] [--profile] [--wav] [--gif | --png] [--drop-frames] [--screenshot]
+ * [--disassemble] [--trace | --trace-events] [--quirks <profile>] [--run-ahead <frames>]
+ * <cycles> <rom>...}
+ * <p>
+ * With {@code --quirks} each ROM runs as on the platform named by a {@link QuirkProfile}, such as {@code SCHIP}.
+ * <p>
+ * How long each ROM took to load, to finish its first frame and to finish its first second of play is reported too.
+ * With {@code --disassemble} each ROM's reachable code is found by a {@link RomAnalysis} once it loads, and listed a
+ * basic block at a time in {@code <rom>.lst} in the working directory.
+ * <p>
+ * With {@code --rewind} every frame is pushed to a {@link RewindBuffer}, which is then stepped back through to the
+ * start to report its size per frame and the time a rewind step takes.
+ * <p>
+ * With {@code --run-ahead} every frame is followed by running that many frames ahead through a {@link RunAhead},
+ * which reports what running ahead cost per frame against the latency it would hide.
+ * <p>
+ * With {@code --profile} every instruction is counted by a {@link Profiler}, its report is printed and the cycles
+ * per call stack are written to {@code <rom>.folded} in the working directory for flame graph tools.
+ * <p>
+ * With {@code --wav} the sound is synthesised by an {@link AudioOutput} and written to {@code <rom>.wav} in the
+ * working directory.
+ * <p>
+ * With {@code --gif} every picture the machine shows is recorded by a {@link FrameRecorder} to {@code <rom>.gif} in
+ * the working directory, or with {@code --png} to numbered files in {@code <rom>-frames}. The machine waits for the
+ * encoder when it falls behind, unless {@code --drop-frames} is given.
+ * <p>
+ * With {@code --trace} every instruction is written by a {@link Tracer} to {@code <rom>.trace} in the working
+ * directory, for {@link TraceDecoder}, or with {@code --trace-events} only events such as unknown opcodes.
+ * <p>
+ * With {@code --screenshot} the screen at the end of the run is drawn by a {@link SoftwareRasterizer} and written to
+ * {@code <rom>.png} in the working directory.
+ */
+public class HeadlessRunner {
+    private static final long DEFAULT_CYCLES = 10_000_000L;
+    private static final int SCREENSHOT_SCALE = 8;
+
+    public static void main(String[] args) throws Exception {
+        int arg = 0;
+        boolean recompile = false;
+        boolean rewind = false;
+        boolean profile = false;
+        boolean wav = false;
+        String frames = null;
+        FrameRecorder.Policy policy = FrameRecorder.Policy.BLOCK;
+        boolean screenshot = false;
+        boolean disassemble = false;
+        Tracer.Level traceLevel = null;
+        QuirkProfile quirks = QuirkProfile.MODERN;
+        int runAheadFrames = 0;
+        for (; arg < args.length && args[arg].startsWith("--"); arg++) {
+            if (args[arg].equals("--jit")) {
+                recompile = true;
+            } else if (args[arg].equals("--rewind")) {
+                rewind = true;
+            } else if (args[arg].equals("--profile")) {
+                profile = true;
+            } else if (args[arg].equals("--wav")) {
+                wav = true;
+            } else if (args[arg].equals("--gif") || args[arg].equals("--png")) {
+                frames = args[arg].substring(2);
+            } else if (args[arg].equals("--drop-frames")) {
+                policy = FrameRecorder.Policy.DROP;
+            } else if (args[arg].equals("--screenshot")) {
+                screenshot = true;
+            } else if (args[arg].equals("--disassemble")) {
+                disassemble = true;
+            } else if (args[arg].equals("--trace")) {
+                traceLevel = Tracer.Level.INSTRUCTIONS;
+            } else if (args[arg].equals("--trace-events")) {
+                traceLevel = Tracer.Level.EVENTS;
+            } else if (args[arg].equals("--quirks") && arg + 1 < args.length) {
+                quirks = QuirkProfile.valueOf(args[++arg]);
+            } else if (args[arg].equals("--run-ahead") && arg + 1 < args.length) {
+                runAheadFrames = Integer.parseInt(args[++arg]);
+            }
+        }
+        if (args.length - arg < 2) {
+            System.out.println("Usage: HeadlessRunner [--jit] [--rewind] [--profile] [--wav] [--gif | --png] "
+                    + "[--drop-frames] [--screenshot] [--disassemble] "
+                    + "[--trace | --trace-events] [--quirks <profile>] [--run-ahead <frames>] <cycles> <rom>...");
+            return;
+        }
+        long cycles = args[arg].isEmpty() ? DEFAULT_CYCLES : Long.parseLong(args[arg]);
+
+        for (int i = arg + 1; i < args.length; i++) {
+            VirtualMachine vm = new VirtualMachine();
+            Path wavPath = Paths.get(Paths.get(args[i]).getFileName() + ".wav");
+            // Room for every tick of the run, the machine outpaces the audio thread by far
+            AudioOutput audio = wav ? new AudioOutput(new WavSink(wavPath), (int) Math.min(1 << 30,
+                    cycles / vm.getInstructionsPerFrame() + 1)) : null;
+            Path framesPath = Paths.get(Paths.get(args[i]).getFileName() + ("gif".equals(frames) ? ".gif" : "-frames"));
+            FrameRecorder recorder = frames == null ? null : new FrameRecorder(
+                    frames.equals("gif") ? new GifSink(framesPath) : new PngSink(framesPath), vm, policy);
+            HeadlessHost host = new HeadlessHost(audio, recorder);
+            vm.setHost(host);
+            vm.setRecompilerEnabled(recompile);
+            vm.setQuirks(quirks);
+            long loadStart = System.nanoTime();
+            vm.loadROM(args[i]);
+            long loaded = System.nanoTime();
+            if (disassemble) {
+                RomAnalysis analysis = vm.analyze();
+                System.out.printf("[Analysis] %s: %d instructions in %d blocks with %d edges\n", args[i],
+                        analysis.getInstructionCount(), analysis.getBlockCount(), analysis.getEdgeCount());
+                Path listing = Paths.get(Paths.get(args[i]).getFileName() + ".lst");
+                try (PrintStream out = new PrintStream(Files.newOutputStream(listing))) {
+                    analysis.writeListing(out);
+                }
+            }
+
+            Profiler profiler = profile ? new Profiler() : null;
+            vm.setProfiler(profiler);
+            Path tracePath = Paths.get(Paths.get(args[i]).getFileName() + ".trace");
+            Tracer tracer = traceLevel == null ? null : new Tracer(tracePath, traceLevel);
+            vm.setTracer(tracer);
+            if (rewind || runAheadFrames > 0) {
+                if (rewind) {
+                    runRewind(args[i], vm, cycles);
+                } else {
+                    runAhead(args[i], vm, host, runAheadFrames, cycles);
+                }
+                if (audio != null) {
+                    closeAudio(audio, wavPath);
+                }
+                if (recorder != null) {
+                    closeRecorder(recorder, framesPath);
+                }
+                if (tracer != null) {
+                    closeTracer(tracer, tracePath);
+                }
+                continue;
+            }
+
+            // The first frame and first second are timed on their way, the machine runs just the same
+            long start = System.nanoTime();
+            long executed = vm.runFor(Math.min(cycles, vm.getInstructionsPerFrame()));
+            long firstFrame = System.nanoTime();
+            long second = (long) vm.getInstructionsPerFrame() * FrameScheduler.FRAMES_PER_SECOND;
+            if (!vm.isWaitingForKey()) {
+                executed += vm.runFor(Math.min(cycles, second) - executed);
+            }
+            long firstSecond = System.nanoTime();
+            if (!vm.isWaitingForKey()) {
+                executed += vm.runFor(cycles - executed);
+            }
+            long elapsed = System.nanoTime() - start;
+            if (vm.isWaitingForKey()) {
+                System.out.printf("[Headless] %s: halted waiting for a key\n", args[i]);
+            }
+            long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+            System.out.printf("[Startup] %s: loaded in %.3f ms, first frame %.3f ms and first second of play "
+                            + "%.3f ms after loading, first frame %d ms after the JVM started\n",
+                    args[i], (loaded - loadStart) / 1e6, (firstFrame - loadStart) / 1e6,
+                    (firstSecond - loadStart) / 1e6, uptime - (System.nanoTime() - firstFrame) / 1_000_000);
+
+            System.out.printf("[Headless] %s: %d cycles in %.3f ms, %.2f MIPS, %d idle cycles skipped, "
+                            + "%d refreshes, %d ticks of sound\n",
+                    args[i], executed, elapsed / 1e6, executed * 1e3 / elapsed, vm.getSkippedCycles(),
+                    host.getRefreshCount(), host.getSoundTicks());
+            if (vm.getUnknownOpcodes() > 0) {
+                System.out.printf("[Headless] %s: %d unknown opcodes skipped\n", args[i], vm.getUnknownOpcodes());
+            }
+            if (audio != null) {
+                closeAudio(audio, wavPath);
+            }
+            if (recorder != null) {
+                closeRecorder(recorder, framesPath);
+            }
+            if (tracer != null) {
+                closeTracer(tracer, tracePath);
+            }
+            if (screenshot) {
+                writeScreenshot(vm, Paths.get(Paths.get(args[i]).getFileName() + ".png"));
+            }
+
+            if (profiler != null) {
+                profiler.writeReport(System.out);
+                Path folded = Paths.get(Paths.get(args[i]).getFileName() + ".folded");
+                try (PrintStream out = new PrintStream(Files.newOutputStream(folded))) {
+                    profiler.writeCollapsedStacks(out);
+                }
+                System.out.printf("[Headless] Call stacks written to %s\n", folded);
+            }
+        }
+    }
+
+    private static void closeAudio(AudioOutput audio, Path path) throws IOException {
+        long start = System.nanoTime();
+        audio.close();
+        System.out.printf("[Audio] %d samples written to %s in a further %.3f ms, %d ticks dropped\n",
+                audio.getSamplesWritten(), path, (System.nanoTime() - start) / 1e6, audio.getDroppedTicks());
+    }
+
+    private static void closeRecorder(FrameRecorder recorder, Path path) throws IOException {
+        long start = System.nanoTime();
+        recorder.close();
+        System.out.printf("[Recorder] %d of %d frames written to %s in a further %.3f ms, %d duplicates, "
+                        + "%d dropped, %.3f ms waiting for the encoder\n",
+                recorder.getWrittenFrames(), recorder.getCapturedFrames(), path, (System.nanoTime() - start) / 1e6,
+                recorder.getDuplicateFrames(), recorder.getDroppedFrames(), recorder.getBlockedNanos() / 1e6);
+    }
+
+    private static void closeTracer(Tracer tracer, Path path) throws IOException {
+        long start = System.nanoTime();
+        tracer.close();
+        System.out.printf("[Tracer] %.1f MB written to %s in a further %.3f ms, %d records lost\n",
+                tracer.getBytesWritten() / 1e6, path, (System.nanoTime() - start) / 1e6, tracer.getLostRecords());
+    }
+
+    private static void writeScreenshot(VirtualMachine vm, Path path) throws IOException {
+        Frame frame = new Frame();
+        frame.copyFrom(vm);
+        SoftwareRasterizer rasterizer = new SoftwareRasterizer(SCREENSHOT_SCALE, false);
+        rasterizer.draw(frame);
+        ImageIO.write(rasterizer.toImage(), "png", path.toFile());
+        System.out.printf("[Headless] Screenshot written to %s\n", path);
+    }
+
+    private static void runAhead(String rom, VirtualMachine vm, HeadlessHost host, int frames, long cycles) {
+        RunAhead runAhead = new RunAhead(vm, host, frames);
+        long start = System.nanoTime();
+        while (vm.getCycleCount() < cycles && !vm.isWaitingForKey()) {
+            runAhead.runFrame();
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("[Headless] %s: %d cycles in %.3f ms running %d frames ahead, %d refreshes, "
+                        + "%d ticks of sound\n",
+                rom, vm.getCycleCount(), elapsed / 1e6, frames, host.getRefreshCount(), host.getSoundTicks());
+        runAhead.writeReport(System.out);
+    }
+
+    private static void runRewind(String rom, VirtualMachine vm, long cycles) {
+        RewindBuffer buffer = new RewindBuffer();
+        buffer.push(vm);
+        long start = System.nanoTime();
+        while (vm.getCycleCount() < cycles && !vm.isWaitingForKey()) {
+            vm.runFrame();
+            buffer.push(vm);
+        }
+        long elapsed = System.nanoTime() - start;
+        int frames = buffer.getFrameCount();
+        long used = buffer.getUsedBytes();
+
+        long rewindNanos = 0;
+        long worstNanos = 0;
+        int steps = 0;
+        while (buffer.rewind(vm, 1) > 0) {
+            rewindNanos += buffer.getLastRewindNanos();
+            worstNanos = Math.max(worstNanos, buffer.getLastRewindNanos());
+            steps++;
+        }
+
+        System.out.printf("[Rewind] %s: %d frames held in %.1f KB (%.1f bytes/frame), recorded in %.3f ms, "
+                        + "rewind step %.1f us average, %.1f us worst\n",
+                rom, frames, used / 1024.0, buffer.getBytesPerFrame(), elapsed / 1e6,
+                steps == 0 ? 0 : rewindNanos / 1e3 / steps, worstNanos / 1e3);
+    }
+}
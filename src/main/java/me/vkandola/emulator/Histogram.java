@@ -0,0 +1,154 @@
+package me.vkandola.emulator;
+
+import java.beans.ConstructorProperties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations into buckets a quarter of a power of two wide, so that any percentile read back is at most 25%
+ * above the true value. Recording is two atomic adds, safe from any number of threads, and never allocates.
+ * <p>
+ * Values below 8 get a bucket each. Above that, a value's bucket is found from its highest set bit and the two bits
+ * below it.
+ */
+public class Histogram {
+    private static final int EXACT = 8;
+    private static final int SUB_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    static final int BUCKETS = EXACT + (Long.SIZE - 1 - 3) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+
+    // Counts as of the last call to interval(), only used by its caller's thread
+    private final long[] previous = new long[BUCKETS];
+    private long previousTotal;
+
+    /**
+     * What a histogram held, exported by {@link TelemetryMXBean} as composite data.
+     */
+    public static final class Summary {
+        private final long count;
+        private final long meanNanos;
+        private final long p50Nanos;
+        private final long p99Nanos;
+        private final long maxNanos;
+
+        @ConstructorProperties({"count", "meanNanos", "p50Nanos", "p99Nanos", "maxNanos"})
+        public Summary(long count, long meanNanos, long p50Nanos, long p99Nanos, long maxNanos) {
+            this.count = count;
+            this.meanNanos = meanNanos;
+            this.p50Nanos = p50Nanos;
+            this.p99Nanos = p99Nanos;
+            this.maxNanos = maxNanos;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMeanNanos() {
+            return meanNanos;
+        }
+
+        public long getP50Nanos() {
+            return p50Nanos;
+        }
+
+        public long getP99Nanos() {
+            return p99Nanos;
+        }
+
+        /**
+         * @return The top of the highest bucket anything was counted in
+         */
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+    }
+
+    public void record(long nanos) {
+        counts.getAndIncrement(bucket(Math.max(0, nanos)));
+        total.addAndGet(nanos);
+    }
+
+    /**
+     * @return Everything recorded so far
+     */
+    public Summary summarize() {
+        long[] current = new long[BUCKETS];
+        for (int b = 0; b < BUCKETS; b++) {
+            current[b] = counts.get(b);
+        }
+        return summarize(current, total.get());
+    }
+
+    /**
+     * Summarizes what was recorded since the previous call, to be called from one thread only.
+     */
+    public Summary interval() {
+        long[] current = new long[BUCKETS];
+        for (int b = 0; b < BUCKETS; b++) {
+            long count = counts.get(b);
+            current[b] = count - previous[b];
+            previous[b] = count;
+        }
+        long sum = total.get();
+        Summary summary = summarize(current, sum - previousTotal);
+        previousTotal = sum;
+        return summary;
+    }
+
+    private static Summary summarize(long[] counts, long sum) {
+        long count = 0;
+        int highest = -1;
+        for (int b = 0; b < BUCKETS; b++) {
+            count += counts[b];
+            if (counts[b] != 0) {
+                highest = b;
+            }
+        }
+        if (count == 0) {
+            return new Summary(0, 0, 0, 0, 0);
+        }
+        return new Summary(count, sum / count, percentile(counts, count, 0.5), percentile(counts, count, 0.99),
+                top(highest));
+    }
+
+    /**
+     * @return The top of the bucket the percentile falls in
+     */
+    private static long percentile(long[] counts, long count, double fraction) {
+        long rank = (long) Math.ceil(count * fraction);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += counts[b];
+            if (seen >= rank) {
+                return top(b);
+            }
+        }
+        return top(BUCKETS - 1);
+    }
+
+    static int bucket(long value) {
+        if (value < EXACT) {
+            return (int) value;
+        }
+        int high = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (high - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return EXACT + (high - 3) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return The largest value counted in a bucket
+     */
+    static long top(int bucket) {
+        if (bucket < EXACT) {
+            return bucket;
+        }
+        int high = (bucket - EXACT) / SUB_BUCKETS + 3;
+        int sub = (bucket - EXACT) % SUB_BUCKETS;
+        long width = 1L << (high - SUB_BITS);
+        return ((long) (SUB_BUCKETS + sub) << (high - SUB_BITS)) + width - 1;
+    }
+}
@@ -0,0 +1,22 @@
+package me.vkandola.emulator;
+
+/**
+ * The environment a {@link VirtualMachine} runs inside of, providing display and sound. Input goes straight to the
+ * machine through {@link VirtualMachine#pressKey(int)} and {@link VirtualMachine#releaseKey(int)}.
+ */
+public interface Host {
+    /**
+     * Called at the end of a cycle in which the screen buffer changed.
+     *
+     * @param vm The machine whose screen buffer changed
+     */
+    void refreshScreen(VirtualMachine vm);
+
+    /**
+     * Called on every timer tick, 60 times a second of machine time, with whether the buzzer sounds for that tick.
+     * Runs on the thread executing the machine, so it should hand the state off rather than produce sound itself.
+     *
+     * @param playing True while the sound timer is non-zero
+     */
+    void tickSound(boolean playing);
+}
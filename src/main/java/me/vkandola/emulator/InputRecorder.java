@@ -0,0 +1,90 @@
+package me.vkandola.emulator;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Logs every change to the keys a machine sees, stamped with the cycle of the first instruction that reads it, so
+ * that a session can be played back exactly by {@link InputReplayer}. The machine is deterministic apart from its
+ * input, so the log and the ROM are all a replay needs.
+ * <p>
+ * The log is written front to back and never rewritten, big-endian:
+ * <pre>
+ *   int     MAGIC, short VERSION
+ *   int     instructions per frame
+ *   UTF     name of the quirk profile, as DataOutput#writeUTF writes it
+ *   records varint of (cycles since the previous record &lt;&lt; 1), then a short of keys held, bit per key
+ *   end     varint of (cycles since the previous record &lt;&lt; 1 | 1), the cycle recording stopped on
+ * </pre>
+ * A log cut short without its end record replays up to its last change. Version 1 logs have no quirk profile and
+ * replay under {@link QuirkProfile#MODERN}, the only behaviour there was when they were written.
+ */
+public class InputRecorder implements Closeable {
+    static final int MAGIC = 0x4338494E; // "C8IN"
+    static final short VERSION = 2;
+
+    private final DataOutputStream out;
+    private final VirtualMachine vm;
+    private long lastCycle;
+
+    /**
+     * Starts recording a machine that has just loaded its ROM, and sets itself as the machine's recorder.
+     */
+    public InputRecorder(Path path, VirtualMachine vm) throws IOException {
+        this(Files.newOutputStream(path), vm);
+    }
+
+    public InputRecorder(OutputStream stream, VirtualMachine vm) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(stream));
+        this.vm = vm;
+        this.lastCycle = vm.getCycleCount();
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeInt(vm.getInstructionsPerFrame());
+        out.writeUTF(vm.getQuirks().name());
+        vm.setInputRecorder(this);
+    }
+
+    /**
+     * Called by the machine when an instruction reads keys that differ from the last read.
+     *
+     * @param cycle Cycle count of the machine, the change applies from this cycle on
+     * @param keys  Keys now held, bit per key
+     */
+    void record(long cycle, int keys) {
+        try {
+            writeVarint((cycle - lastCycle) << 1);
+            out.writeShort(keys);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        lastCycle = cycle;
+    }
+
+    /**
+     * Writes the end record at the machine's current cycle and closes the log.
+     */
+    @Override
+    public void close() throws IOException {
+        vm.setInputRecorder(null);
+        try {
+            writeVarint((vm.getCycleCount() - lastCycle) << 1 | 1);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeVarint(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+}
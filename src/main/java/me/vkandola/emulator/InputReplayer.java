@@ -0,0 +1,171 @@
+package me.vkandola.emulator;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Plays a log written by {@link InputRecorder} back into a machine as fast as the host CPU allows, then hashes the
+ * screen so that the outcome of a long session can be checked against a known value.
+ * <p>
+ * Usage: {@code InputReplayer [--jit] <rom> <log>...}
+ */
+public class InputReplayer {
+    // FNV-1a, 64 bit
+    private static final long HASH_OFFSET = 0xCBF29CE484222325L;
+    private static final long HASH_PRIME = 0x100000001B3L;
+
+    private final MappedByteBuffer log;
+    private final int instructionsPerFrame;
+    private final QuirkProfile quirks;
+
+    /**
+     * Maps a log into memory, records are then read straight out of the page cache as the replay goes.
+     *
+     * @throws IOException Thrown if the file can't be read or is not an input log this version can read
+     */
+    public InputReplayer(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            log = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (log.remaining() < Integer.BYTES + Short.BYTES + Integer.BYTES || log.getInt() != InputRecorder.MAGIC) {
+            throw new IOException("Not an input log: " + path);
+        }
+        short version = log.getShort();
+        if (version < 1 || version > InputRecorder.VERSION) {
+            throw new IOException("Unsupported input log version " + version);
+        }
+        instructionsPerFrame = log.getInt();
+        quirks = version == 1 ? QuirkProfile.MODERN : readQuirks(path);
+    }
+
+    private QuirkProfile readQuirks(Path path) throws IOException {
+        // Profile names are ASCII, which writeUTF leaves as it is
+        int length = log.remaining() < Short.BYTES ? -1 : log.getShort() & 0xFFFF;
+        if (length < 0 || log.remaining() < length) {
+            throw new IOException("Not an input log: " + path);
+        }
+        byte[] name = new byte[length];
+        log.get(name);
+        try {
+            return QuirkProfile.valueOf(new String(name, StandardCharsets.UTF_8));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unknown quirk profile in input log: " + path);
+        }
+    }
+
+    /**
+     * @return The quirk profile the log was recorded under, which {@link #replay(VirtualMachine)} sets
+     */
+    public QuirkProfile getQuirks() {
+        return quirks;
+    }
+
+    /**
+     * Replays the whole log into a machine that has just loaded the ROM it was recorded with, under the quirk profile
+     * it was recorded with.
+     *
+     * @return The number of cycles executed
+     */
+    public long replay(VirtualMachine vm) {
+        vm.setInstructionsPerFrame(instructionsPerFrame);
+        if (vm.getQuirks() != quirks) {
+            vm.setQuirks(quirks);
+        }
+        long start = vm.getCycleCount();
+        long cycle = start;
+        while (log.hasRemaining()) {
+            long record = readVarint();
+            cycle += record >>> 1;
+            // A machine waiting on FX0A returns after every retry, which the recording made too
+            while (vm.getCycleCount() < cycle) {
+                vm.runFor(cycle - vm.getCycleCount());
+            }
+            if ((record & 1) != 0 || log.remaining() < Short.BYTES) {
+                break;
+            }
+            vm.setKeys(log.getShort() & 0xFFFF);
+        }
+        return vm.getCycleCount() - start;
+    }
+
+    /**
+     * @return A hash of every pixel on the screen, at its current resolution. Planes past the first are only hashed
+     * if anything is drawn on them, so a plain CHIP-8 screen hashes the same as it always has.
+     */
+    public static long hashScreen(VirtualMachine vm) {
+        long hash = HASH_OFFSET;
+        int words = vm.getScreenWidth() / Long.SIZE;
+        for (int plane = 0; plane < VirtualMachine.PLANE_COUNT; plane++) {
+            if (plane > 0 && isBlank(vm, plane)) {
+                continue;
+            }
+            for (int y = 0; y < vm.getScreenHeight(); y++) {
+                for (int word = 0; word < words; word++) {
+                    long row = vm.getScreenWord(plane, y, word);
+                    for (int shift = Long.SIZE - Byte.SIZE; shift >= 0; shift -= Byte.SIZE) {
+                        hash ^= (row >>> shift) & 0xFF;
+                        hash *= HASH_PRIME;
+                    }
+                }
+            }
+        }
+        return hash;
+    }
+
+    private static boolean isBlank(VirtualMachine vm, int plane) {
+        for (int y = 0; y < VirtualMachine.HIRES_HEIGHT; y++) {
+            for (int word = 0; word < VirtualMachine.ROW_WORDS; word++) {
+                if (vm.getScreenWord(plane, y, word) != 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private long readVarint() {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = log.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0 && log.hasRemaining());
+        return value;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int arg = 0;
+        boolean recompile = false;
+        if (arg < args.length && args[arg].equals("--jit")) {
+            recompile = true;
+            arg++;
+        }
+        if (args.length - arg < 2) {
+            System.out.println("Usage: InputReplayer [--jit] <rom> <log>...");
+            return;
+        }
+        String rom = args[arg];
+
+        for (int i = arg + 1; i < args.length; i++) {
+            VirtualMachine vm = new VirtualMachine();
+            vm.setRecompilerEnabled(recompile);
+            vm.loadROM(rom);
+            InputReplayer replayer = new InputReplayer(Paths.get(args[i]));
+
+            long start = System.nanoTime();
+            long executed = replayer.replay(vm);
+            long elapsed = System.nanoTime() - start;
+
+            double seconds = (double) executed / vm.getInstructionsPerFrame() / FrameScheduler.FRAMES_PER_SECOND;
+            System.out.printf("[Replay] %s: %d cycles (%.1f s of play) in %.3f ms, screen hash %016x\n",
+                    args[i], executed, seconds, elapsed / 1e6, hashScreen(vm));
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package me.vkandola.emulator;
+
+/**
+ * The linear congruential generator behind {@link java.util.Random}, with its 48-bit state held by the caller so it
+ * can live in a plain field or array. Produces exactly the same sequence as {@code new Random(seed).nextInt()}.
+ */
+final class Lcg {
+    private static final long MULTIPLIER = 0x5DEECE66DL;
+    private static final long ADDEND = 0xBL;
+    private static final long MASK = (1L << 48) - 1;
+
+    private Lcg() {
+    }
+
+    /**
+     * @return The initial state for a seed
+     */
+    static long seed(long seed) {
+        return (seed ^ MULTIPLIER) & MASK;
+    }
+
+    /**
+     * @return The state after the current one
+     */
+    static long next(long state) {
+        return (state * MULTIPLIER + ADDEND) & MASK;
+    }
+
+    /**
+     * @return The random int for a state, as returned by {@code nextInt()} on reaching it
+     */
+    static int value(long state) {
+        return (int) (state >>> 16);
+    }
+}
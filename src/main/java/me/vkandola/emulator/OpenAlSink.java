@@ -0,0 +1,100 @@
+package me.vkandola.emulator;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.openal.AL;
+import org.lwjgl.openal.ALC;
+import org.lwjgl.openal.ALCCapabilities;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.lwjgl.openal.AL10.*;
+import static org.lwjgl.openal.ALC10.*;
+import static org.lwjgl.system.MemoryUtil.NULL;
+
+/**
+ * Streams samples to the default OpenAL device through a source with a few buffers queued on it. Writing waits for
+ * the device to finish playing the oldest buffer, which paces the audio thread to the sound card's clock.
+ */
+public class OpenAlSink implements AudioSink {
+    // Buffers queued at once, each holding one write, so latency is this many writes
+    private static final int BUFFERS = 4;
+    private static final long POLL_NANOS = 1_000_000L;
+
+    private final int[] buffers = new int[BUFFERS];
+    private int queued;
+    private int sampleRate;
+    private ShortBuffer pcm = BufferUtils.createShortBuffer(0);
+    private long device = NULL;
+    private long context = NULL;
+    private int source;
+
+    @Override
+    public void open(int sampleRate) throws IOException {
+        this.sampleRate = sampleRate;
+        device = alcOpenDevice((ByteBuffer) null);
+        if (device == NULL) {
+            throw new IOException("No OpenAL device");
+        }
+        ALCCapabilities capabilities = ALC.createCapabilities(device);
+        context = alcCreateContext(device, (IntBuffer) null);
+        if (context == NULL || !alcMakeContextCurrent(context)) {
+            throw new IOException("Unable to create an OpenAL context");
+        }
+        AL.createCapabilities(capabilities);
+        source = alGenSources();
+        alGenBuffers(buffers);
+    }
+
+    @Override
+    public void write(short[] samples, int count) throws IOException {
+        int buffer;
+        if (queued < BUFFERS) {
+            buffer = buffers[queued++];
+        } else {
+            while (alGetSourcei(source, AL_BUFFERS_PROCESSED) == 0) {
+                LockSupport.parkNanos(POLL_NANOS);
+            }
+            buffer = alSourceUnqueueBuffers(source);
+        }
+
+        if (pcm.capacity() < count) {
+            pcm = BufferUtils.createShortBuffer(count);
+        }
+        pcm.clear();
+        pcm.put(samples, 0, count).flip();
+        alBufferData(buffer, AL_FORMAT_MONO16, pcm, sampleRate);
+        alSourceQueueBuffers(source, buffer);
+
+        // The source stops by itself if it runs dry, say while the machine waits on FX0A
+        if (alGetSourcei(source, AL_SOURCE_STATE) != AL_PLAYING) {
+            alSourcePlay(source);
+        }
+        int error = alGetError();
+        if (error != AL_NO_ERROR) {
+            throw new IOException("OpenAL error " + error);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (context != NULL) {
+            if (source != 0) {
+                alSourceStop(source);
+                alDeleteSources(source);
+                alDeleteBuffers(buffers);
+                source = 0;
+            }
+            alcMakeContextCurrent(NULL);
+            alcDestroyContext(context);
+            context = NULL;
+        }
+        if (device != NULL) {
+            alcCloseDevice(device);
+            device = NULL;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package me.vkandola.emulator;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Writes each frame to its own PNG file in a directory, named after its position in the sequence and the cycle it
+ * appeared on, say {@code 000042-1234567.png}, so the time each frame was shown for can be worked out from the
+ * names.
+ */
+public class PngSink implements FrameSink {
+    private final Path directory;
+    private long index;
+
+    public PngSink(Path directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public void open(int cyclesPerSecond) throws IOException {
+        Files.createDirectories(directory);
+    }
+
+    @Override
+    public void write(BufferedImage image, long cycle, long endCycle) throws IOException {
+        Path path = directory.resolve(String.format("%06d-%d.png", index++, cycle));
+        if (!ImageIO.write(image, "png", path.toFile())) {
+            throw new IOException("No PNG writer");
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+}
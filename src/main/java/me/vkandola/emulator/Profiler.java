@@ -0,0 +1,206 @@
+package me.vkandola.emulator;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Counts where a machine spends its cycles: executions per operation and per address, subroutine calls and returns,
+ * pixels drawn, and cycles per call stack. Attach one with {@link VirtualMachine#setProfiler(Profiler)}.
+ * <p>
+ * Everything is kept in flat primitive arrays so that counting is a few increments per cycle. Call stacks are a trie
+ * of subroutine entry addresses, each node counting the cycles spent in it while its path was the call stack.
+ */
+public class Profiler {
+    private static final int HOT_ADDRESSES = 20;
+    // Call stacks past this many distinct paths are counted against the deepest known caller
+    private static final int MAX_NODES = 1 << 16;
+    private static final int ROOT = 0;
+
+    private final long[] opCounts = new long[Decoder.NUM_OPS];
+    private final long[] pcCounts = new long[VirtualMachine.MEMORY_SIZE];
+    // Calls made and returns taken at each address, with the address last called from each call site
+    private final long[] callCounts = new long[VirtualMachine.MEMORY_SIZE];
+    private final int[] callTargets = new int[VirtualMachine.MEMORY_SIZE];
+    private final long[] returnCounts = new long[VirtualMachine.MEMORY_SIZE];
+    // Set pixels in the sprites drawn at each address
+    private final long[] pixelCounts = new long[VirtualMachine.MEMORY_SIZE];
+    private long cycles;
+
+    // Call trie, node 0 is the program entry. Children are found through an open addressed table keyed on
+    // (parent, entry address).
+    private final int[] nodeParent = new int[MAX_NODES];
+    private final int[] nodeAddress = new int[MAX_NODES];
+    private final long[] nodeCycles = new long[MAX_NODES];
+    private final int[] childTable = new int[MAX_NODES * 2];
+    private int nodeCount = 1;
+    private int node = ROOT;
+
+    public Profiler() {
+        nodeAddress[ROOT] = VirtualMachine.MEMORY_PROGRAM_START;
+        Arrays.fill(childTable, -1);
+    }
+
+    /**
+     * Counts an instruction about to be executed.
+     *
+     * @param pc      Address of the instruction
+     * @param decoded The decoded instruction
+     * @param pixels  Set pixels in the sprite if the instruction draws one
+     */
+    void count(int pc, int decoded, int pixels) {
+        int op = Decoder.op(decoded);
+        cycles++;
+        opCounts[op]++;
+        pcCounts[pc]++;
+        nodeCycles[node]++;
+
+        switch (op) {
+            case Decoder.OP_CALL:
+                callCounts[pc]++;
+                callTargets[pc] = Decoder.nnn(decoded);
+                node = child(node, Decoder.nnn(decoded));
+                break;
+            case Decoder.OP_RET:
+                returnCounts[pc]++;
+                node = nodeParent[node];
+                break;
+            case Decoder.OP_DRW:
+            case Decoder.OP_DRW_CLIP:
+                pixelCounts[pc] += pixels;
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Forgets all counts.
+     */
+    public void reset() {
+        Arrays.fill(opCounts, 0);
+        Arrays.fill(pcCounts, 0);
+        Arrays.fill(callCounts, 0);
+        Arrays.fill(returnCounts, 0);
+        Arrays.fill(pixelCounts, 0);
+        Arrays.fill(nodeCycles, 0);
+        Arrays.fill(childTable, -1);
+        cycles = 0;
+        nodeCount = 1;
+        node = ROOT;
+    }
+
+    public long getCycles() {
+        return cycles;
+    }
+
+    public long getAddressCount(int address) {
+        return pcCounts[address];
+    }
+
+    /**
+     * Prints the operation mix, the hottest addresses, call sites and drawing sites.
+     */
+    public void writeReport(PrintStream out) {
+        out.printf("%d cycles profiled\n", cycles);
+
+        out.println("Operations:");
+        Integer[] ops = new Integer[Decoder.NUM_OPS - Decoder.OP_UNKNOWN];
+        for (int i = 0; i < ops.length; i++) {
+            ops[i] = Decoder.OP_UNKNOWN + i;
+        }
+        Arrays.sort(ops, (a, b) -> Long.compare(opCounts[b], opCounts[a]));
+        for (int op : ops) {
+            if (opCounts[op] != 0) {
+                out.printf("  %s %12d %6.2f%%\n", Decoder.pattern(op), opCounts[op], percent(opCounts[op]));
+            }
+        }
+
+        out.println("Hot addresses:");
+        for (int address : top(pcCounts, HOT_ADDRESSES)) {
+            out.printf("  0x%03X %12d %6.2f%%\n", address, pcCounts[address], percent(pcCounts[address]));
+        }
+
+        out.println("Calls:");
+        for (int address : top(callCounts, VirtualMachine.MEMORY_SIZE)) {
+            out.printf("  0x%03X -> 0x%03X %12d\n", address, callTargets[address], callCounts[address]);
+        }
+        out.println("Returns:");
+        for (int address : top(returnCounts, VirtualMachine.MEMORY_SIZE)) {
+            out.printf("  0x%03X %12d\n", address, returnCounts[address]);
+        }
+
+        out.println("Pixels drawn:");
+        for (int address : top(pixelCounts, VirtualMachine.MEMORY_SIZE)) {
+            out.printf("  0x%03X %12d pixels in %d draws\n", address, pixelCounts[address], pcCounts[address]);
+        }
+    }
+
+    /**
+     * Prints cycles per call stack in the collapsed format flame graph tools read, one stack per line with its
+     * subroutine entry addresses from the outermost, separated by semicolons, then the cycle count.
+     */
+    public void writeCollapsedStacks(PrintStream out) {
+        StringBuilder line = new StringBuilder();
+        for (int n = 0; n < nodeCount; n++) {
+            if (nodeCycles[n] == 0) {
+                continue;
+            }
+            line.setLength(0);
+            for (int frame = n; ; frame = nodeParent[frame]) {
+                line.insert(0, String.format("0x%03X", nodeAddress[frame]));
+                if (frame == ROOT) {
+                    break;
+                }
+                line.insert(0, ';');
+            }
+            out.printf("%s %d\n", line, nodeCycles[n]);
+        }
+    }
+
+    /**
+     * Finds or adds the trie node for calling an address from a node.
+     */
+    private int child(int parent, int address) {
+        int slot = (int) (((long) parent * 0x9E3779B1L + address) & (childTable.length - 1));
+        while (childTable[slot] >= 0) {
+            int candidate = childTable[slot];
+            if (nodeParent[candidate] == parent && nodeAddress[candidate] == address) {
+                return candidate;
+            }
+            slot = (slot + 1) & (childTable.length - 1);
+        }
+        if (nodeCount == MAX_NODES) {
+            // Recursion this deep, count it where it is rather than grow without bound
+            return parent;
+        }
+        int n = nodeCount++;
+        nodeParent[n] = parent;
+        nodeAddress[n] = address;
+        childTable[slot] = n;
+        return n;
+    }
+
+    private double percent(long count) {
+        return cycles == 0 ? 0 : count * 100.0 / cycles;
+    }
+
+    /**
+     * @return Addresses with a non-zero count, highest first, at most limit of them
+     */
+    private static int[] top(long[] counts, int limit) {
+        Integer[] addresses = new Integer[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            addresses[i] = i;
+        }
+        Arrays.sort(addresses, (a, b) -> Long.compare(counts[b], counts[a]));
+        int length = 0;
+        while (length < Math.min(limit, addresses.length) && counts[addresses[length]] != 0) {
+            length++;
+        }
+        int[] result = new int[length];
+        for (int i = 0; i < length; i++) {
+            result[i] = addresses[i];
+        }
+        return result;
+    }
+}
@@ -0,0 +1,75 @@
+package me.vkandola.emulator;
+
+/**
+ * How instructions whose behaviour differs between CHIP-8 platforms are executed. Set one on a machine with
+ * {@link VirtualMachine#setQuirks(QuirkProfile)} before loading a ROM written for that platform.
+ * <p>
+ * A profile never adds a branch to a handler. It turns the operations it changes into variant operations as each
+ * instruction is decoded, so the decode cache, interpreter and recompiler only ever see the handler for the platform.
+ */
+public enum QuirkProfile {
+    /**
+     * The original interpreter: 8XY1-3 reset VF, shifts read VY, FX55/FX65 leave I past the last register, sprites are
+     * clipped at the edges and BNNN jumps from V0.
+     */
+    COSMAC_VIP(true, false, Memory.INCREMENT, true, false),
+    /**
+     * The HP48 interpreter: shifts work on VX, FX55/FX65 leave I on the last register, sprites are clipped and BXNN
+     * jumps from VX.
+     */
+    CHIP48(false, true, Memory.INCREMENT_BY_X, true, true),
+    /**
+     * SUPER-CHIP 1.1, as CHIP-48 but FX55/FX65 leave I as it was.
+     */
+    SCHIP(false, true, Memory.KEEP, true, true),
+    /**
+     * XO-CHIP, as written for by Octo: shifts read VY, FX55/FX65 leave I past the last register, sprites wrap around
+     * the edges and BNNN jumps from V0. The base operations, used unless another profile is set.
+     */
+    MODERN(false, false, Memory.INCREMENT, false, false);
+
+    private enum Memory {
+        INCREMENT, INCREMENT_BY_X, KEEP
+    }
+
+    // The operation each one is executed as
+    private final int[] OPS = new int[Decoder.NUM_OPS];
+
+    QuirkProfile(boolean resetVF, boolean shiftVX, Memory memory, boolean clip, boolean jumpVX) {
+        for (int op = 0; op < OPS.length; op++) {
+            OPS[op] = op;
+        }
+        if (resetVF) {
+            OPS[Decoder.OP_OR] = Decoder.OP_OR_RESET_VF;
+            OPS[Decoder.OP_AND] = Decoder.OP_AND_RESET_VF;
+            OPS[Decoder.OP_XOR] = Decoder.OP_XOR_RESET_VF;
+        }
+        if (shiftVX) {
+            OPS[Decoder.OP_SHR] = Decoder.OP_SHR_VX;
+            OPS[Decoder.OP_SHL] = Decoder.OP_SHL_VX;
+        }
+        if (memory == Memory.INCREMENT_BY_X) {
+            OPS[Decoder.OP_STORE] = Decoder.OP_STORE_INCREMENT_BY_X;
+            OPS[Decoder.OP_LOAD] = Decoder.OP_LOAD_INCREMENT_BY_X;
+        } else if (memory == Memory.KEEP) {
+            OPS[Decoder.OP_STORE] = Decoder.OP_STORE_KEEP_I;
+            OPS[Decoder.OP_LOAD] = Decoder.OP_LOAD_KEEP_I;
+        }
+        if (clip) {
+            OPS[Decoder.OP_DRW] = Decoder.OP_DRW_CLIP;
+        }
+        if (jumpVX) {
+            OPS[Decoder.OP_JP_V0] = Decoder.OP_JP_VX;
+        }
+    }
+
+    /**
+     * Decodes a raw opcode for this platform.
+     *
+     * @return The decoded instruction word, with the operation swapped for this platform's variant if it has one
+     */
+    int decode(int opcode) {
+        int decoded = Decoder.decode(opcode);
+        return Decoder.withOp(decoded, OPS[Decoder.op(decoded)]);
+    }
+}
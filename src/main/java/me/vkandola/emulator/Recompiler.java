@@ -0,0 +1,189 @@
+package me.vkandola.emulator;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+
+/**
+ * Optional execution tier that translates hot basic blocks into method handle chains.
+ * <p>
+ * A block starts wherever execution enters it and runs straight through to the first jump, call, return, skip, key
+ * wait or memory write. Each instruction becomes its operation's handler with the decoded form bound as a constant,
+ * followed by {@link VirtualMachine#commit}, and the steps are folded into one handle. Once a block has run often
+ * enough HotSpot customizes the chain into a class of its own, inlining every handler with its operands as constants.
+ * <p>
+ * Cold code keeps running in the interpreter. Writes into translated memory drop the blocks covering them.
+ */
+final class Recompiler {
+    // Times a block has to be entered before it is translated
+    private static final int HOT_THRESHOLD = 32;
+    // Longest block translated, in instructions
+    private static final int MAX_BLOCK_LENGTH = 32;
+
+    private static final MethodHandle COMMIT;
+
+    static {
+        try {
+            COMMIT = MethodHandles.lookup().findStatic(VirtualMachine.class, "commit",
+                    MethodType.methodType(void.class, short.class, VirtualMachine.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final VirtualMachine vm;
+    private final int memorySize;
+
+    // Translated block, its length in instructions and entry count, for each start address
+    private final MethodHandle[] BLOCKS;
+    private final byte[] BLOCK_LENGTH;
+    private final short[] HOTNESS;
+    // Number of translated blocks covering each byte of memory
+    private final byte[] COVERAGE;
+
+    Recompiler(VirtualMachine vm, int memorySize) {
+        this.vm = vm;
+        this.memorySize = memorySize;
+        BLOCKS = new MethodHandle[memorySize];
+        BLOCK_LENGTH = new byte[memorySize];
+        HOTNESS = new short[memorySize];
+        COVERAGE = new byte[memorySize];
+    }
+
+    /**
+     * Runs the block starting at an address, translating it first if it just became hot.
+     *
+     * @param pc     The address of the block
+     * @param budget The most cycles that may be executed
+     * @return The number of cycles executed, or 0 if the interpreter should execute the instruction instead
+     */
+    int run(int pc, long budget) {
+        MethodHandle block = BLOCKS[pc];
+        if (block == null) {
+            if (++HOTNESS[pc] < HOT_THRESHOLD) {
+                return 0;
+            }
+            block = translate(pc);
+            if (block == null) {
+                return 0;
+            }
+        }
+        int length = BLOCK_LENGTH[pc];
+        if (length > budget) {
+            return 0;
+        }
+        try {
+            block.invokeExact(vm);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+        return length;
+    }
+
+    /**
+     * Drops every block covering an address, called whenever it is written to.
+     */
+    void invalidate(int address) {
+        if (COVERAGE[address] == 0) {
+            return;
+        }
+        for (int start = Math.max(0, address - 2 * MAX_BLOCK_LENGTH + 1); start <= address; start++) {
+            if (BLOCKS[start] != null && start + 2 * BLOCK_LENGTH[start] > address) {
+                drop(start);
+            }
+        }
+    }
+
+    /**
+     * Drops every block, called when a new ROM is loaded.
+     */
+    void reset() {
+        Arrays.fill(BLOCKS, null);
+        Arrays.fill(BLOCK_LENGTH, (byte) 0);
+        Arrays.fill(HOTNESS, (short) 0);
+        Arrays.fill(COVERAGE, (byte) 0);
+    }
+
+    /**
+     * @return The translated block, or null if it is a single instruction and is left to the interpreter
+     */
+    private MethodHandle translate(int pc) {
+        MethodHandle[] steps = new MethodHandle[MAX_BLOCK_LENGTH];
+        int length = 0;
+        int address = pc;
+        while (length < MAX_BLOCK_LENGTH && address + 1 < memorySize) {
+            int decoded = vm.decodeAt(address);
+            MethodHandle handler = MethodHandles.insertArguments(VirtualMachine.handler(Decoder.op(decoded)), 1, decoded);
+            steps[length++] = MethodHandles.foldArguments(COMMIT, handler);
+            address += 2;
+            if (endsBlock(decoded)) {
+                break;
+            }
+        }
+
+        if (length < 2) {
+            // Nothing to gain over the interpreter, check back much later in case the code changes.
+            HOTNESS[pc] = Short.MIN_VALUE;
+            return null;
+        }
+
+        MethodHandle block = sequence(steps, 0, length);
+        BLOCKS[pc] = block;
+        BLOCK_LENGTH[pc] = (byte) length;
+        for (int i = pc; i < address; i++) {
+            COVERAGE[i]++;
+        }
+        return block;
+    }
+
+    private void drop(int start) {
+        for (int i = start; i < start + 2 * BLOCK_LENGTH[start]; i++) {
+            COVERAGE[i]--;
+        }
+        BLOCKS[start] = null;
+        BLOCK_LENGTH[start] = 0;
+        HOTNESS[start] = 0;
+    }
+
+    /**
+     * Chains steps into a single handle running them in order, as a balanced tree to keep the inlining depth low.
+     */
+    private static MethodHandle sequence(MethodHandle[] steps, int from, int to) {
+        if (to - from == 1) {
+            return steps[from];
+        }
+        int middle = (from + to) >>> 1;
+        return MethodHandles.foldArguments(sequence(steps, middle, to), sequence(steps, from, middle));
+    }
+
+    static boolean endsBlock(int decoded) {
+        switch (Decoder.op(decoded)) {
+            case (Decoder.OP_RET):
+            case (Decoder.OP_JP):
+            case (Decoder.OP_CALL):
+            case (Decoder.OP_SE_VX_NN):
+            case (Decoder.OP_SNE_VX_NN):
+            case (Decoder.OP_SE_VX_VY):
+            case (Decoder.OP_SNE_VX_VY):
+            case (Decoder.OP_JP_V0):
+            case (Decoder.OP_JP_VX):
+            case (Decoder.OP_SKP):
+            case (Decoder.OP_SKNP):
+            case (Decoder.OP_LD_VX_K):
+            case (Decoder.OP_LD_B):
+            case (Decoder.OP_STORE):
+            case (Decoder.OP_STORE_INCREMENT_BY_X):
+            case (Decoder.OP_STORE_KEEP_I):
+            case (Decoder.OP_SAVE_RANGE):
+            case (Decoder.OP_EXIT):
+            case (Decoder.OP_LD_I_LONG): // The next word is its operand, not an instruction
+            case (Decoder.OP_UNKNOWN):
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package me.vkandola.emulator;
+
+/**
+ * Turns the frames a machine shows into something to look at, be it a window, an image or a texture. Frames are
+ * drawn one after another on a single thread, so a backend may keep the last frame and only redraw what changed.
+ */
+public interface RenderBackend {
+    /**
+     * Draws a frame over the last one.
+     */
+    void draw(Frame frame);
+}
@@ -0,0 +1,332 @@
+package me.vkandola.emulator;
+
+import java.util.Arrays;
+
+/**
+ * A bounded history of machine states, one per frame, that the machine can be stepped back through.
+ * <p>
+ * Each frame is stored as the XOR of its state with the previous frame's, which is almost entirely zero bytes and
+ * so is run-length encoded down to a few dozen bytes. Every {@code keyframeInterval} frames the whole state is kept
+ * as well, so that going back a long way replays forwards from a keyframe instead of undoing every frame in between.
+ * Once the history grows past its byte cap the oldest frames are evicted.
+ * <p>
+ * Encoded runs are a varint count of unchanged bytes to skip, a varint count of changed bytes, then the changed
+ * bytes XORed with their previous value.
+ */
+public class RewindBuffer {
+    public static final long DEFAULT_CAPACITY_BYTES = 16L << 20;
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 60;
+    // Rough cost of an entry and its arrays' headers, so that small deltas still count towards the cap
+    private static final int ENTRY_OVERHEAD_BYTES = 48;
+
+    private final long capacityBytes;
+    private final int keyframeInterval;
+
+    // Ring of entries, oldest at head, length always a power of two
+    private Entry[] ring = new Entry[64];
+    private int head;
+    private int size;
+
+    // State of the newest entry and the snapshot it came from, if known, and room to build the next one. Memory pages
+    // a new snapshot shares with the image's are known to be unchanged, so only the others are copied and compared.
+    private final byte[] image = new byte[Snapshot.IMAGE_SIZE];
+    private final byte[] scratch = new byte[Snapshot.IMAGE_SIZE];
+    private Snapshot imageSnapshot;
+    // Whether the scratch image matches the image, true between pushes but not after a rewind
+    private boolean scratchCurrent;
+    private final boolean[] shared = new boolean[VirtualMachine.MEMORY_SIZE / VirtualMachine.PAGE_SIZE];
+    private final byte[] encodeBuffer = new byte[2 * Snapshot.IMAGE_SIZE + 16];
+    private int framesSinceKeyframe;
+
+    private long usedBytes;
+    private long framesPushed;
+    private long bytesPushed;
+    private long lastRewindNanos;
+
+    private static final class Entry {
+        // XOR with the previous entry's state, null for the oldest entry
+        byte[] delta;
+        // Whole state, or null if this is not a keyframe
+        final byte[] keyframe;
+
+        Entry(byte[] delta, byte[] keyframe) {
+            this.delta = delta;
+            this.keyframe = keyframe;
+        }
+
+        int bytes() {
+            return ENTRY_OVERHEAD_BYTES + (delta == null ? 0 : delta.length)
+                    + (keyframe == null ? 0 : keyframe.length);
+        }
+    }
+
+    public RewindBuffer() {
+        this(DEFAULT_CAPACITY_BYTES, DEFAULT_KEYFRAME_INTERVAL);
+    }
+
+    /**
+     * @param capacityBytes    Memory the history may use before the oldest frames are evicted
+     * @param keyframeInterval Frames between whole copies of the state
+     */
+    public RewindBuffer(long capacityBytes, int keyframeInterval) {
+        if (capacityBytes <= 0 || keyframeInterval <= 0) {
+            throw new IllegalArgumentException("Capacity and keyframe interval must be positive");
+        }
+        this.capacityBytes = capacityBytes;
+        this.keyframeInterval = keyframeInterval;
+    }
+
+    /**
+     * Adds the machine's current state as the newest frame, evicting the oldest if over the cap. Meant to be called
+     * once at the end of every frame.
+     */
+    public void push(VirtualMachine vm) {
+        Snapshot snapshot = vm.snapshot();
+        for (int p = 0; p < shared.length; p++) {
+            shared[p] = imageSnapshot != null && imageSnapshot.pages[p] == snapshot.pages[p];
+        }
+        snapshot.toImage(scratch, scratchCurrent ? imageSnapshot : null);
+
+        byte[] delta = size == 0 ? null : encode(image, scratch, shared);
+        byte[] keyframe = null;
+        if (size == 0 || framesSinceKeyframe >= keyframeInterval) {
+            keyframe = encode(null, scratch, null);
+            framesSinceKeyframe = 0;
+        }
+        framesSinceKeyframe++;
+
+        for (int p = 0; p < shared.length; p++) {
+            if (!shared[p]) {
+                System.arraycopy(scratch, p * VirtualMachine.PAGE_SIZE, image, p * VirtualMachine.PAGE_SIZE,
+                        VirtualMachine.PAGE_SIZE);
+            }
+        }
+        System.arraycopy(scratch, VirtualMachine.MEMORY_SIZE, image, VirtualMachine.MEMORY_SIZE,
+                image.length - VirtualMachine.MEMORY_SIZE);
+        imageSnapshot = snapshot;
+        scratchCurrent = true;
+
+        Entry entry = new Entry(delta, keyframe);
+        add(entry);
+        framesPushed++;
+        bytesPushed += entry.bytes();
+        evict();
+    }
+
+    /**
+     * Steps the machine back to the state it was in the given number of frames before the newest, and forgets the
+     * frames after it so that pushing carries on from there.
+     *
+     * @return Number of frames actually stepped back, less than asked for if the history is shorter
+     */
+    public int rewind(VirtualMachine vm, int frames) {
+        long start = System.nanoTime();
+        if (size <= 1) {
+            // Nothing before the newest frame, or no frames at all
+            return 0;
+        }
+        int newest = size - 1;
+        int target = Math.max(0, newest - Math.max(0, frames));
+        if (target == newest) {
+            return 0;
+        }
+
+        // Nearest keyframe at or before the target, replaying forwards from it may beat undoing backwards
+        int keyframe = target;
+        while (keyframe >= 0 && get(keyframe).keyframe == null) {
+            keyframe--;
+        }
+        // Pages no delta touches keep the image's state, and match the machine's if it still shares them with it
+        Snapshot base = vm.snapshot();
+        for (int p = 0; p < shared.length; p++) {
+            shared[p] = imageSnapshot != null && imageSnapshot.pages[p] == base.pages[p];
+        }
+        if (keyframe >= 0 && target - keyframe < newest - target) {
+            Arrays.fill(image, (byte) 0);
+            Arrays.fill(shared, false);
+            apply(image, get(keyframe).keyframe, shared);
+            for (int i = keyframe + 1; i <= target; i++) {
+                apply(image, get(i).delta, shared);
+            }
+        } else {
+            for (int i = newest; i > target; i--) {
+                apply(image, get(i).delta, shared);
+            }
+        }
+        // Forces a keyframe soon if the last one before the target has been evicted
+        framesSinceKeyframe = keyframe >= 0 ? target - keyframe + 1 : keyframeInterval;
+
+        for (int i = newest; i > target; i--) {
+            usedBytes -= get(i).bytes();
+            ring[(head + i) & (ring.length - 1)] = null;
+        }
+        size = target + 1;
+
+        imageSnapshot = Snapshot.fromImage(image, base, shared);
+        scratchCurrent = false;
+        vm.restore(imageSnapshot);
+        lastRewindNanos = System.nanoTime() - start;
+        return newest - target;
+    }
+
+    /**
+     * Forgets every frame.
+     */
+    public void clear() {
+        Arrays.fill(ring, null);
+        head = 0;
+        size = 0;
+        usedBytes = 0;
+        framesSinceKeyframe = 0;
+        imageSnapshot = null;
+        scratchCurrent = false;
+    }
+
+    /**
+     * @return Number of frames held, including the newest
+     */
+    public int getFrameCount() {
+        return size;
+    }
+
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public long getCapacityBytes() {
+        return capacityBytes;
+    }
+
+    /**
+     * @return Average bytes stored per frame pushed, keyframes included
+     */
+    public double getBytesPerFrame() {
+        return framesPushed == 0 ? 0 : (double) bytesPushed / framesPushed;
+    }
+
+    /**
+     * @return Time the last call to {@link #rewind(VirtualMachine, int)} took, restoring the machine included
+     */
+    public long getLastRewindNanos() {
+        return lastRewindNanos;
+    }
+
+    private Entry get(int index) {
+        return ring[(head + index) & (ring.length - 1)];
+    }
+
+    private void add(Entry entry) {
+        if (size == ring.length) {
+            Entry[] grown = new Entry[ring.length * 2];
+            for (int i = 0; i < size; i++) {
+                grown[i] = get(i);
+            }
+            ring = grown;
+            head = 0;
+        }
+        ring[(head + size) & (ring.length - 1)] = entry;
+        size++;
+        usedBytes += entry.bytes();
+    }
+
+    private void evict() {
+        while (usedBytes > capacityBytes && size > 1) {
+            usedBytes -= get(0).bytes();
+            ring[head] = null;
+            head = (head + 1) & (ring.length - 1);
+            size--;
+
+            // Nothing comes before the oldest entry any more, so its delta is dead weight
+            Entry oldest = get(0);
+            usedBytes -= oldest.bytes();
+            oldest.delta = null;
+            usedBytes += oldest.bytes();
+        }
+    }
+
+    /**
+     * Run-length encodes the XOR of two states.
+     *
+     * @param previous Earlier state, or null to encode the current state whole
+     * @param shared   Memory pages known to be the same in both states, or null to compare every page
+     */
+    private byte[] encode(byte[] previous, byte[] current, boolean[] shared) {
+        int length = 0;
+        int i = 0;
+        while (i < current.length) {
+            int skipStart = i;
+            while (i < current.length && current[i] == (previous == null ? 0 : previous[i])) {
+                i++;
+                if (shared != null && i < VirtualMachine.MEMORY_SIZE && (i & (VirtualMachine.PAGE_SIZE - 1)) == 0) {
+                    while (i < VirtualMachine.MEMORY_SIZE && shared[i / VirtualMachine.PAGE_SIZE]) {
+                        i += VirtualMachine.PAGE_SIZE;
+                    }
+                }
+            }
+            if (i == current.length) {
+                break;
+            }
+            // A changed run carries on over a single unchanged byte, which is cheaper than starting a new run
+            int runStart = i;
+            while (i < current.length && (differs(previous, current, i)
+                    || i + 1 < current.length && differs(previous, current, i + 1))) {
+                i++;
+            }
+            length = putVarint(encodeBuffer, length, runStart - skipStart);
+            length = putVarint(encodeBuffer, length, i - runStart);
+            for (int j = runStart; j < i; j++) {
+                encodeBuffer[length++] = (byte) (current[j] ^ (previous == null ? 0 : previous[j]));
+            }
+        }
+        return Arrays.copyOf(encodeBuffer, length);
+    }
+
+    private static boolean differs(byte[] previous, byte[] current, int index) {
+        return current[index] != (previous == null ? 0 : previous[index]);
+    }
+
+    /**
+     * XORs an encoded delta into a state, which turns either neighbouring frame's state into the other's.
+     *
+     * @param untouched Cleared for each memory page the delta changes
+     */
+    private static void apply(byte[] image, byte[] delta, boolean[] untouched) {
+        int position = 0;
+        int i = 0;
+        while (i < delta.length) {
+            int skip = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = delta[i++];
+                skip |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            int run = 0;
+            shift = 0;
+            do {
+                b = delta[i++];
+                run |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+
+            position += skip;
+            for (int page = position / VirtualMachine.PAGE_SIZE; page < untouched.length
+                    && page * VirtualMachine.PAGE_SIZE < position + run; page++) {
+                untouched[page] = false;
+            }
+            for (int end = position + run; position < end; position++) {
+                image[position] ^= delta[i++];
+            }
+        }
+    }
+
+    private static int putVarint(byte[] buffer, int offset, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[offset++] = (byte) value;
+        return offset;
+    }
+}
@@ -0,0 +1,192 @@
+package me.vkandola.emulator;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * What can be worked out about a ROM before running it: the instructions reachable from its entry point, split into
+ * basic blocks joined by a control flow graph. Made by {@link VirtualMachine#analyze()} and printed as a listing.
+ * <p>
+ * Reachable code is found by following every jump, call, return site and both ways of every skip from 0x200. Jumps
+ * through BNNN and code the ROM writes for itself can't be followed, and are missing from the analysis. Blocks end
+ * where the recompiler's blocks do, and wherever another block starts.
+ */
+public final class RomAnalysis {
+    private static final int MAX_SUCCESSORS = 2;
+
+    // Reachable instructions by address, with their opcodes as loaded
+    private final int[] addresses;
+    private final int[] opcodes;
+    // Basic blocks by start address, with their lengths in instructions and successor blocks
+    private final int[] blockStarts;
+    private final int[] blockLengths;
+    private final int[][] successors;
+
+    private RomAnalysis(int[] addresses, int[] opcodes, int[] blockStarts, int[] blockLengths, int[][] successors) {
+        this.addresses = addresses;
+        this.opcodes = opcodes;
+        this.blockStarts = blockStarts;
+        this.blockLengths = blockLengths;
+        this.successors = successors;
+    }
+
+    /**
+     * Analyzes a ROM just loaded into memory.
+     *
+     * @param memory The machine's memory, fonts and ROM loaded
+     */
+    static RomAnalysis analyze(byte[] memory) {
+        int size = memory.length;
+        boolean[] reachable = new boolean[size];
+        boolean[] leader = new boolean[size];
+        int[] work = new int[size];
+        int pending = 0;
+        int[] next = new int[MAX_SUCCESSORS];
+
+        // Every address is queued at most once, when first found reachable
+        int entry = VirtualMachine.MEMORY_PROGRAM_START;
+        reachable[entry] = true;
+        leader[entry] = true;
+        work[pending++] = entry;
+        int count = 0;
+        while (pending > 0) {
+            int address = work[--pending];
+            count++;
+            int decoded = Decoder.decode(opcodeAt(memory, address));
+            boolean ends = Recompiler.endsBlock(decoded);
+            for (int i = successors(memory, address, decoded, next) - 1; i >= 0; i--) {
+                leader[next[i]] |= ends;
+                if (!reachable[next[i]]) {
+                    reachable[next[i]] = true;
+                    work[pending++] = next[i];
+                }
+            }
+        }
+
+        int[] addresses = new int[count];
+        int[] opcodes = new int[count];
+        int blocks = 0;
+        for (int address = 0, i = 0; address < size; address++) {
+            if (reachable[address]) {
+                addresses[i] = address;
+                opcodes[i++] = opcodeAt(memory, address);
+                if (leader[address]) {
+                    blocks++;
+                }
+            }
+        }
+
+        // A block runs on to the next instruction until it reaches one that ends it or starts another block
+        int[] blockStarts = new int[blocks];
+        int[] blockLengths = new int[blocks];
+        int[][] successors = new int[blocks][];
+        for (int address = 0, b = 0; address < size; address++) {
+            if (!reachable[address] || !leader[address]) {
+                continue;
+            }
+            int last = address;
+            int length = 1;
+            while (true) {
+                int decoded = Decoder.decode(opcodeAt(memory, last));
+                int following = last + 2;
+                if (Recompiler.endsBlock(decoded) || following + 1 >= size || leader[following]) {
+                    successors[b] = Arrays.copyOf(next, successors(memory, last, decoded, next));
+                    break;
+                }
+                last = following;
+                length++;
+            }
+            blockStarts[b] = address;
+            blockLengths[b++] = length;
+        }
+        return new RomAnalysis(addresses, opcodes, blockStarts, blockLengths, successors);
+    }
+
+    private static int opcodeAt(byte[] memory, int address) {
+        return ((memory[address] & 0xFF) << 8) | (memory[address + 1] & 0xFF);
+    }
+
+    /**
+     * Finds the addresses execution may continue at after an instruction, leaving out any past the end of memory.
+     *
+     * @return The number of addresses put in next
+     */
+    private static int successors(byte[] memory, int address, int decoded, int[] next) {
+        int count = 0;
+        switch (Decoder.op(decoded)) {
+            case (Decoder.OP_RET):
+            case (Decoder.OP_EXIT):
+            case (Decoder.OP_JP_V0):
+            case (Decoder.OP_UNKNOWN):
+                break;
+            case (Decoder.OP_JP):
+                next[count++] = Decoder.nnn(decoded);
+                break;
+            case (Decoder.OP_CALL):
+                next[count++] = Decoder.nnn(decoded);
+                next[count++] = address + 2;
+                break;
+            case (Decoder.OP_SE_VX_NN):
+            case (Decoder.OP_SNE_VX_NN):
+            case (Decoder.OP_SE_VX_VY):
+            case (Decoder.OP_SNE_VX_VY):
+            case (Decoder.OP_SKP):
+            case (Decoder.OP_SKNP):
+                next[count++] = address + 2;
+                // Skipping F000 NNNN skips its operand as well
+                next[count++] = address + (address + 3 < memory.length && opcodeAt(memory, address + 2) == 0xF000
+                        ? 6 : 4);
+                break;
+            case (Decoder.OP_LD_I_LONG):
+                next[count++] = address + 4;
+                break;
+            default:
+                next[count++] = address + 2;
+                break;
+        }
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            if (next[i] + 1 < memory.length) {
+                next[kept++] = next[i];
+            }
+        }
+        return kept;
+    }
+
+    public int getInstructionCount() {
+        return addresses.length;
+    }
+
+    public int getBlockCount() {
+        return blockStarts.length;
+    }
+
+    /**
+     * @return The number of control flow edges between blocks
+     */
+    public int getEdgeCount() {
+        int edges = 0;
+        for (int[] next : successors) {
+            edges += next.length;
+        }
+        return edges;
+    }
+
+    /**
+     * Prints the disassembly a block at a time, each with the blocks it may continue at.
+     */
+    public void writeListing(PrintStream out) {
+        for (int b = 0; b < blockStarts.length; b++) {
+            out.printf("block 0x%03X, %d instructions ->", blockStarts[b], blockLengths[b]);
+            for (int successor : successors[b]) {
+                out.printf(" 0x%03X", successor);
+            }
+            out.println();
+            for (int address = blockStarts[b], n = 0; n < blockLengths[b]; address += 2, n++) {
+                int i = Arrays.binarySearch(addresses, address);
+                out.printf("  0x%03X  %04X  %s\n", address, opcodes[i],
+                        Decoder.pattern(Decoder.op(Decoder.decode(opcodes[i]))));
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package me.vkandola.emulator;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Hides frames of a ROM's input latency by showing each frame as it will look a few frames later. Every frame the
+ * machine runs for real, is snapshotted, runs ahead with the keys held now, has its screen shown, then is restored
+ * to the snapshot. A key press that a ROM only draws a frame or two after reading it appears that much sooner.
+ * <p>
+ * The frames run ahead are silent and their screens other than the last are never shown, while the sound of the real
+ * frames plays as usual. A profiler, tracer or debugger attached to the machine sees the frames run ahead too, and
+ * input can't be recorded meanwhile, as an {@link InputRecorder} would log the keys read ahead.
+ * <p>
+ * Running ahead costs that many extra frames of emulation each frame, plus a snapshot and a restore. These are timed
+ * so that the number of frames can be tuned per ROM against the latency it hides, see {@link #writeReport}.
+ */
+public class RunAhead {
+    public static final int MAX_FRAMES = 8;
+    private static final double FRAME_MILLIS = 1000.0 / FrameScheduler.FRAMES_PER_SECOND;
+
+    private final VirtualMachine vm;
+    private final Host host;
+    private volatile int frames;
+    // Set while running ahead, so that sound is left out
+    private boolean runningAhead;
+
+    // The screen last shown, and room to copy the next one into
+    private long[] shown = new long[VirtualMachine.SCREEN_WORDS];
+    private long[] next = new long[VirtualMachine.SCREEN_WORDS];
+    private boolean shownHires;
+
+    private long realFrames;
+    private long aheadFrames;
+    private long realNanos;
+    private long aheadNanos;
+    private long stateNanos;
+    private long screensShown;
+
+    /**
+     * Sets itself as the machine's host, passing sound and the screens it shows on to the host given.
+     *
+     * @param frames Frames to run ahead, see {@link #setFrames(int)}
+     */
+    public RunAhead(VirtualMachine vm, Host host, int frames) {
+        this.vm = vm;
+        this.host = host;
+        setFrames(frames);
+        vm.setHost(new Host() {
+            @Override
+            public void refreshScreen(VirtualMachine vm) {
+                // Without running ahead the machine's own screen is shown, as when this is not the host
+                if (RunAhead.this.frames == 0) {
+                    host.refreshScreen(vm);
+                }
+            }
+
+            @Override
+            public void tickSound(boolean playing) {
+                if (!runningAhead) {
+                    host.tickSound(playing);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sets how many frames ahead to show from the next frame on, 0 to show the machine as it is. Safe to call from
+     * any thread.
+     */
+    public void setFrames(int frames) {
+        if (frames < 0 || frames > MAX_FRAMES) {
+            throw new IllegalArgumentException("Run ahead frames must be 0 to " + MAX_FRAMES + ", got " + frames);
+        }
+        this.frames = frames;
+    }
+
+    public int getFrames() {
+        return frames;
+    }
+
+    /**
+     * Runs one frame in place of {@link VirtualMachine#runFrame()}, then runs ahead and shows the screen reached if
+     * it changed. Returns early, without running ahead, if FX0A halts the machine. Running ahead stops early at
+     * FX0A as well, showing how far it got.
+     *
+     * @return The number of cycles executed for real
+     */
+    public long runFrame() {
+        int ahead = frames;
+        long start = System.nanoTime();
+        long executed = vm.runFrame();
+        long ran = System.nanoTime();
+        realFrames++;
+        realNanos += ran - start;
+        if (ahead == 0) {
+            return executed;
+        }
+        if (vm.isWaitingForKey()) {
+            show();
+            return executed;
+        }
+
+        Snapshot snapshot = vm.snapshot();
+        long snapshotted = System.nanoTime();
+        runningAhead = true;
+        try {
+            for (int i = 0; i < ahead && !vm.isWaitingForKey(); i++) {
+                vm.runFrame();
+                aheadFrames++;
+            }
+        } finally {
+            runningAhead = false;
+        }
+        long ranAhead = System.nanoTime();
+        show();
+        long restoreStart = System.nanoTime();
+        vm.restore(snapshot);
+        long restored = System.nanoTime();
+        aheadNanos += ranAhead - snapshotted;
+        stateNanos += (snapshotted - ran) + (restored - restoreStart);
+        return executed;
+    }
+
+    /**
+     * Passes the machine's screen on to the host if it differs from the one last shown.
+     */
+    private void show() {
+        vm.copyScreen(next);
+        if (vm.isHighResolution() == shownHires && Arrays.equals(next, shown)) {
+            return;
+        }
+        long[] swap = shown;
+        shown = next;
+        next = swap;
+        shownHires = vm.isHighResolution();
+        screensShown++;
+        host.refreshScreen(vm);
+    }
+
+    /**
+     * @return Frames run for real
+     */
+    public long getRealFrames() {
+        return realFrames;
+    }
+
+    /**
+     * @return Frames run ahead and thrown away, fewer than frames times real frames if FX0A cut any short
+     */
+    public long getAheadFrames() {
+        return aheadFrames;
+    }
+
+    /**
+     * @return Time spent running frames for real
+     */
+    public long getRealNanos() {
+        return realNanos;
+    }
+
+    /**
+     * @return Time spent running frames ahead
+     */
+    public long getAheadNanos() {
+        return aheadNanos;
+    }
+
+    /**
+     * @return Time spent taking snapshots and restoring them
+     */
+    public long getStateNanos() {
+        return stateNanos;
+    }
+
+    /**
+     * @return Screens passed on to the host
+     */
+    public long getScreensShown() {
+        return screensShown;
+    }
+
+    /**
+     * Writes a line comparing the extra time each frame took against the latency hidden.
+     */
+    public void writeReport(PrintStream out) {
+        long real = Math.max(1, realFrames);
+        double framesAhead = (double) aheadFrames / real;
+        out.printf("[RunAhead] %d frames, %.2f frames (%.1f ms) of latency hidden on average, frame %.1f us, "
+                        + "extra %.1f us running ahead and %.1f us snapshotting and restoring per frame (%.1fx)\n",
+                realFrames, framesAhead, framesAhead * FRAME_MILLIS, realNanos / 1e3 / real,
+                aheadNanos / 1e3 / real, stateNanos / 1e3 / real,
+                realNanos == 0 ? 0 : (double) (realNanos + aheadNanos + stateNanos) / realNanos);
+    }
+}
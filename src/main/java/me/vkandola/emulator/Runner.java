@@ -1,12 +1,16 @@
 package me.vkandola.emulator;
 
+import org.lwjgl.BufferUtils;
 import org.lwjgl.Version;
 import org.lwjgl.glfw.GLFWErrorCallback;
 import org.lwjgl.glfw.GLFWVidMode;
 import org.lwjgl.opengl.GL;
 import org.lwjgl.system.MemoryStack;
 
+import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 import static org.lwjgl.glfw.Callbacks.glfwFreeCallbacks;
 import static org.lwjgl.glfw.GLFW.*;
@@ -14,15 +18,33 @@ import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.system.MemoryStack.stackPush;
 import static org.lwjgl.system.MemoryUtil.NULL;
 
-public class Runner {
+public class Runner implements Host {
     private static final String ROM_PATH = "./roms/PUZZLE";
     private static final int WORLD_PIXELS_PER_LOCAL = 16;
     private int width = WORLD_PIXELS_PER_LOCAL * VirtualMachine.SCREEN_WIDTH;
     private int height = WORLD_PIXELS_PER_LOCAL * VirtualMachine.SCREEN_HEIGHT;
 
     private VirtualMachine vm = new VirtualMachine();
+    private FrameScheduler scheduler = new FrameScheduler(this::runFrame);
+    private RewindBuffer rewind = new RewindBuffer();
+    private AudioOutput audio = new AudioOutput(new OpenAlSink());
+    private volatile boolean rewinding;
+    // Key changes are logged here if set, rewinding is off meanwhile as the log could not follow it
+    private Path recordPath;
+    private InputRecorder recorder;
+    // Frames shown ahead of the machine to hide input latency, off while recording
+    private int runAheadFrames;
+    private RunAhead runAhead;
+    // Logged every period and exported over JMX
+    private final Telemetry telemetry = new Telemetry();
     private long windowHandle;
-    private static final boolean KEYS[] = new boolean[16];
+    private int screenTexture;
+    private ByteBuffer screenPixels;
+
+    // Frames going from the emulation thread to the GL thread, and the rows currently in the screen texture
+    private final TripleBuffer<Frame> frames = new TripleBuffer<>(Frame::new);
+    private final Frame displayed = new Frame();
+    private Thread emulationThread;
 
     public void run() throws Exception {
         System.out.println("Hello LWJGL " + Version.getVersion() + "!");
@@ -53,12 +75,22 @@ public class Runner {
             throw new RuntimeException("Failed to create the GLFW windowHandle");
 
         glfwSetKeyCallback(windowHandle, (window, key, scancode, action, mods) -> {
+            // Hold tab to run uncapped
+            if (key == GLFW_KEY_TAB && action != GLFW_REPEAT) {
+                scheduler.setTurbo(action == GLFW_PRESS);
+            }
+            // Hold backspace to step back in time
+            if (key == GLFW_KEY_BACKSPACE && action != GLFW_REPEAT) {
+                rewinding = action == GLFW_PRESS;
+            }
+            // Keys go straight to the machine, which the emulation thread may be parked waiting on
             Integer keyNum = KeyMap.convertKey(key);
             if (keyNum != null) {
                 if (action == GLFW_RELEASE) {
-                    KEYS[keyNum] = false;
+                    vm.releaseKey(keyNum);
                 } else if (action == GLFW_PRESS) {
-                    KEYS[keyNum] = true;
+                    telemetry.keyPressed();
+                    vm.pressKey(keyNum);
                 }
             }
         });
@@ -85,7 +117,12 @@ public class Runner {
 
         vm.loadROM(ROM_PATH);
 
-        vm.setRunner(this);
+        vm.setHost(this);
+        if (recordPath != null) {
+            recorder = new InputRecorder(recordPath, vm);
+        } else if (runAheadFrames > 0) {
+            runAhead = new RunAhead(vm, this, runAheadFrames);
+        }
     }
 
     private void loop() throws Exception {
@@ -98,75 +135,169 @@ public class Runner {
         glOrtho(0, width, height, 0, 1, -1);
         glMatrixMode(GL_MODELVIEW);
 
+        // Screen texture at high resolution, starting blank like the screen buffer and updated a row at a time. Low
+        // resolution pixels cover two by two texels.
+        screenPixels = BufferUtils.createByteBuffer(VirtualMachine.HIRES_WIDTH * VirtualMachine.HIRES_HEIGHT);
+        screenTexture = glGenTextures();
+        glBindTexture(GL_TEXTURE_2D, screenTexture);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP);
+        glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+        glTexImage2D(GL_TEXTURE_2D, 0, GL_LUMINANCE, VirtualMachine.HIRES_WIDTH, VirtualMachine.HIRES_HEIGHT, 0,
+                GL_LUMINANCE, GL_UNSIGNED_BYTE, screenPixels);
+        glEnable(GL_TEXTURE_2D);
+        glColor3ub((byte) 255, (byte) 255, (byte) 255);
+
+        telemetry.start();
+        emulationThread = new Thread(this::emulate, "Emulation");
+        emulationThread.start();
 
         // Run the rendering loop until the user has attempted to close
-        // the windowHandle or has pressed the ESCAPE key.
-        int runs = 0;
+        // the windowHandle or has pressed the ESCAPE key. Swapping buffers waits for vsync.
         while (!glfwWindowShouldClose(windowHandle)) {
-            if (vm.shouldDraw()) {
-                glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT); // clear the framebuffer
-
-                // Set black background
-                glBegin(GL_QUADS);
-                glColor3ub((byte) 155, (byte) 155, (byte) 155);
-                glVertex2i(width, 0);
-                glVertex2i(width, height);
-                glVertex2i(0, height);
-                glVertex2i(0, 0);
-                glEnd();
-
-                // Draw pixels from the screen buffer, colored white if set else black
-                glBegin(GL_QUADS);
-                boolean[] sbuf = vm.getScreenBuffer();
-                for (int i = 0; i < vm.SCREEN_WIDTH; i++) {
-                    for (int j = 0; j < vm.SCREEN_HEIGHT; j++) {
-                        int x = i * WORLD_PIXELS_PER_LOCAL;
-                        int y = j * WORLD_PIXELS_PER_LOCAL;
-                        boolean flipped = sbuf[i + (j * vm.SCREEN_WIDTH)];
-                        if (flipped) {
-                            glColor3ub((byte) 255, (byte) 255, (byte) 255);
-                        } else {
-                            glColor3ub((byte) 0, (byte) 0, (byte) 0);
-                        }
-                        glVertex2i(WORLD_PIXELS_PER_LOCAL + x, y);
-                        glVertex2i(WORLD_PIXELS_PER_LOCAL + x, WORLD_PIXELS_PER_LOCAL + y);
-                        glVertex2i(x, WORLD_PIXELS_PER_LOCAL + y);
-                        glVertex2i(x, y);
-                    }
-                }
-                glEnd();
-
-                glfwSwapBuffers(windowHandle);
-
-                vm.clearDraw();
+            glfwPollEvents();
+            long start = System.nanoTime();
+            Frame frame = frames.take();
+            if (frame != null) {
+                upload(frame);
             }
+            render();
+            long rendered = System.nanoTime();
+            glfwSwapBuffers(windowHandle);
+            telemetry.displayed(rendered - start, System.nanoTime() - rendered, frame != null);
+        }
 
-            glfwPollEvents();
-            //glfwWaitEvents();
-            vm.setKeys(KEYS);
-            // TODO wait events glfwWaitEvents();
-            vm.cycle();
+        scheduler.stop();
+        emulationThread.interrupt();
+        emulationThread.join();
+        audio.close();
+        if (recorder != null) {
+            recorder.close();
+        }
+        if (runAhead != null) {
+            runAhead.writeReport(System.out);
+        }
+        telemetry.close();
+    }
+
+    /**
+     * Emulation thread, runs the machine at 60 frames a second independently of the display.
+     */
+    private void emulate() {
+        try {
+            scheduler.run();
+        } catch (Exception e) {
+            e.printStackTrace();
+            glfwSetWindowShouldClose(windowHandle, true);
         }
     }
 
-    private boolean anyKeyPressed() {
-        for (int i = 0; i < 16 ; i++) {
-            if (KEYS[i]) {
-                return true;
+    /**
+     * Runs one frame on the emulation thread, or undoes one while rewinding.
+     */
+    private void runFrame() {
+        long start = System.nanoTime();
+        if (rewinding && recorder == null) {
+            if (rewind.rewind(vm, 1) > 0) {
+                refreshScreen(vm);
             }
+            telemetry.frameRan(0, System.nanoTime() - start);
+            return;
         }
-        return false;
+        long executed = runAhead != null ? runAhead.runFrame() : vm.runFrame();
+        long waited = 0;
+        if (vm.isWaitingForKey()) {
+            // FX0A halted the machine, sleep until a key is pressed then finish the frame
+            long waitStart = System.nanoTime();
+            vm.awaitKey();
+            waited = System.nanoTime() - waitStart;
+            telemetry.keyWaited(waited);
+        } else {
+            rewind.push(vm);
+        }
+        telemetry.frameRan(executed, System.nanoTime() - start - waited);
+    }
+
+    @Override
+    public void refreshScreen(VirtualMachine vm) {
+        // Called on the emulation thread, hand the new screen over to the GL thread
+        Frame frame = frames.getBackBuffer();
+        frame.copyFrom(vm);
+        frames.publish();
     }
 
-    public void blockForKey() {
-        while(!anyKeyPressed()) {
-            glfwWaitEvents();
+    /**
+     * Uploads the rows of a frame that differ from the screen texture, one byte per texel, shaded by the planes the
+     * pixel is set in.
+     */
+    private void upload(Frame frame) {
+        boolean resized = frame.isHighResolution() != displayed.isHighResolution();
+        long dirtyRows = 0;
+        for (int y = 0; y < frame.getHeight(); y++) {
+            if (resized || !frame.sameRow(displayed, y)) {
+                dirtyRows |= 1L << y;
+            }
         }
-        vm.setKeys(KEYS);
+        displayed.copyFrom(frame);
+
+        // Upload each run of changed rows in one go
+        int scale = VirtualMachine.HIRES_WIDTH / frame.getWidth();
+        int width = VirtualMachine.HIRES_WIDTH;
+        while (dirtyRows != 0) {
+            int first = Long.numberOfTrailingZeros(dirtyRows);
+            int count = Long.numberOfTrailingZeros(~(dirtyRows >>> first));
+            for (int y = first * scale; y < (first + count) * scale; y++) {
+                for (int x = 0; x < width; x++) {
+                    screenPixels.put(y * width + x, Frame.LUMINANCE[frame.getPixel(x / scale, y / scale)]);
+                }
+            }
+            screenPixels.position(first * scale * width);
+            glTexSubImage2D(GL_TEXTURE_2D, 0, 0, first * scale, width, count * scale,
+                    GL_LUMINANCE, GL_UNSIGNED_BYTE, screenPixels);
+            screenPixels.clear();
+            dirtyRows &= count == Long.SIZE ? 0 : ~(((1L << count) - 1) << first);
+        }
+    }
+
+    private void render() {
+        glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT); // clear the framebuffer
+
+        // Stretch the screen texture over the window
+        glBegin(GL_QUADS);
+        glTexCoord2f(1, 0);
+        glVertex2i(width, 0);
+        glTexCoord2f(1, 1);
+        glVertex2i(width, height);
+        glTexCoord2f(0, 1);
+        glVertex2i(0, height);
+        glTexCoord2f(0, 0);
+        glVertex2i(0, 0);
+        glEnd();
     }
 
+    @Override
+    public void tickSound(boolean playing) {
+        audio.tick(playing);
+    }
+
+    /**
+     * Usage: {@code Runner [--record <log>] [--run-ahead <frames>] [--quirks <profile>]}, recording logs input for
+     * {@link InputReplayer} and running ahead shows every frame as it will be that many frames on, see
+     * {@link RunAhead}. The quirk profile is recorded in the log.
+     */
     public static void main(String[] args) {
         Runner runner = new Runner();
+        for (int arg = 0; arg + 1 < args.length; arg += 2) {
+            if (args[arg].equals("--record")) {
+                runner.recordPath = Paths.get(args[arg + 1]);
+            } else if (args[arg].equals("--run-ahead")) {
+                runner.runAheadFrames = Integer.parseInt(args[arg + 1]);
+            } else if (args[arg].equals("--quirks")) {
+                runner.vm.setQuirks(QuirkProfile.valueOf(args[arg + 1]));
+            }
+        }
         try {
             runner.run();
         } catch (Exception e) {
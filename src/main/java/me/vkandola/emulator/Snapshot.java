@@ -0,0 +1,363 @@
+package me.vkandola.emulator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * The full state of a {@link VirtualMachine} at one point in time, taken with {@link VirtualMachine#snapshot()} and
+ * put back with {@link VirtualMachine#restore(Snapshot)}.
+ * <p>
+ * Memory is held as fixed size pages that are never modified once captured, so a page the machine has not written
+ * to since the previous snapshot is shared with it rather than copied. Taking a snapshot every frame only copies the
+ * handful of pages a frame actually writes.
+ * <p>
+ * Binary format, big-endian:
+ * <pre>
+ *   int     MAGIC, short VERSION
+ *   short   page size, short page count
+ *   pages   a byte per page, 0 for a page of zeroes, 1 followed by the page's bytes otherwise
+ *   16      V registers
+ *   short   I, PC, SP, then STACK_SIZE stack entries
+ *   byte    sound timer, delay timer
+ *   short   screen words, followed by the frame buffer's longs in the order of VirtualMachine#copyScreen
+ *   byte    1 in high resolution else 0, then the planes selected, bit per plane
+ *   16      SUPER-CHIP flags
+ *   short   keys held, bit per key
+ *   long    random state, cycle count
+ *   int     frame cycle, instructions per frame
+ *   UTF     name of the quirk profile
+ * </pre>
+ * Version 2 files have no quirk profile and are read as {@link QuirkProfile#MODERN}, which they were written under.
+ * Version 1 files also lack the resolution, planes and flags, and hold 4K of memory and a long per low resolution
+ * row. They are read as a low resolution machine with memory above 4K cleared.
+ */
+public final class Snapshot {
+    private static final int MAGIC = 0x43385353; // "C8SS"
+    private static final short VERSION = 3;
+    private static final short FIRST_VERSION = 1;
+    // Memory of a version 1 machine, before XO-CHIP
+    private static final int V1_MEMORY_SIZE = 0x1000;
+    private static final QuirkProfile[] PROFILES = QuirkProfile.values();
+
+    // Fixed layout of toImage(): memory, the frame buffer, then the rest of the state
+    static final int IMAGE_SIZE = VirtualMachine.MEMORY_SIZE + VirtualMachine.SCREEN_WORDS * Long.BYTES
+            + 2 * VirtualMachine.NUMBER_REGISTERS + 3 * Short.BYTES + VirtualMachine.STACK_SIZE * Short.BYTES
+            + 2 + 2 + Short.BYTES + 2 * Long.BYTES + 2 * Integer.BYTES + 1;
+
+    final byte[][] pages;
+    final byte[] V;
+    final short I;
+    final short PC;
+    final short SP;
+    final short[] STACK;
+    final byte soundTimer;
+    final byte delayTimer;
+    final long[] screen;
+    final boolean hires;
+    final int planes;
+    final byte[] FLAGS;
+    final int keys;
+    final long randomState;
+    final long cycleCount;
+    final int frameCycle;
+    final int instructionsPerFrame;
+    final QuirkProfile quirks;
+
+    Snapshot(byte[][] pages, byte[] V, short I, short PC, short SP, short[] STACK, byte soundTimer, byte delayTimer,
+             long[] screen, boolean hires, int planes, byte[] FLAGS, int keys, long randomState, long cycleCount,
+             int frameCycle, int instructionsPerFrame, QuirkProfile quirks) {
+        this.pages = pages;
+        this.V = V;
+        this.I = I;
+        this.PC = PC;
+        this.SP = SP;
+        this.STACK = STACK;
+        this.soundTimer = soundTimer;
+        this.delayTimer = delayTimer;
+        this.screen = screen;
+        this.hires = hires;
+        this.planes = planes;
+        this.FLAGS = FLAGS;
+        this.keys = keys;
+        this.randomState = randomState;
+        this.cycleCount = cycleCount;
+        this.frameCycle = frameCycle;
+        this.instructionsPerFrame = instructionsPerFrame;
+        this.quirks = quirks;
+    }
+
+    public long getCycleCount() {
+        return cycleCount;
+    }
+
+    /**
+     * Flattens this snapshot into {@link #IMAGE_SIZE} bytes with a fixed layout, so that two images can be compared
+     * byte for byte.
+     *
+     * @param image Destination of at least IMAGE_SIZE bytes
+     */
+    void toImage(byte[] image) {
+        toImage(image, null);
+    }
+
+    /**
+     * Flattens this snapshot over the image of an earlier one, skipping the memory pages the two share.
+     *
+     * @param image    Destination holding the earlier snapshot's image
+     * @param previous The earlier snapshot, or null to write every page
+     */
+    void toImage(byte[] image, Snapshot previous) {
+        ByteBuffer out = ByteBuffer.wrap(image);
+        for (int p = 0; p < pages.length; p++) {
+            if (previous == null || previous.pages[p] != pages[p]) {
+                System.arraycopy(pages[p], 0, image, p * pages[p].length, pages[p].length);
+            }
+        }
+        out.position(VirtualMachine.MEMORY_SIZE);
+        for (long word : screen) {
+            out.putLong(word);
+        }
+        out.put(V);
+        out.put(FLAGS);
+        out.putShort(I);
+        out.putShort(PC);
+        out.putShort(SP);
+        for (short entry : STACK) {
+            out.putShort(entry);
+        }
+        out.put(soundTimer);
+        out.put(delayTimer);
+        out.put((byte) (hires ? 1 : 0));
+        out.put((byte) planes);
+        out.putShort((short) keys);
+        out.putLong(randomState);
+        out.putLong(cycleCount);
+        out.putInt(frameCycle);
+        out.putInt(instructionsPerFrame);
+        out.put((byte) quirks.ordinal());
+    }
+
+    /**
+     * Reverses {@link #toImage(byte[])}. Pages whose bytes match the base snapshot's share its arrays, so restoring
+     * the result over the base only copies the pages that changed.
+     *
+     * @param base Snapshot to share unchanged pages with, or null
+     */
+    static Snapshot fromImage(byte[] image, Snapshot base) {
+        return fromImage(image, base, null);
+    }
+
+    /**
+     * @param same Pages known to match the base snapshot's without comparing, or null
+     */
+    static Snapshot fromImage(byte[] image, Snapshot base, boolean[] same) {
+        ByteBuffer in = ByteBuffer.wrap(image);
+        byte[][] pages = new byte[VirtualMachine.MEMORY_SIZE / VirtualMachine.PAGE_SIZE][];
+        for (int p = 0; p < pages.length; p++) {
+            int start = p * VirtualMachine.PAGE_SIZE;
+            if (base != null && (same != null && same[p] || pageEquals(base.pages[p], image, start))) {
+                pages[p] = base.pages[p];
+            } else {
+                pages[p] = Arrays.copyOfRange(image, start, start + VirtualMachine.PAGE_SIZE);
+            }
+        }
+        in.position(VirtualMachine.MEMORY_SIZE);
+        long[] screen = new long[VirtualMachine.SCREEN_WORDS];
+        for (int i = 0; i < screen.length; i++) {
+            screen[i] = in.getLong();
+        }
+        byte[] V = new byte[VirtualMachine.NUMBER_REGISTERS];
+        in.get(V);
+        byte[] FLAGS = new byte[VirtualMachine.NUMBER_REGISTERS];
+        in.get(FLAGS);
+        short I = in.getShort();
+        short PC = in.getShort();
+        short SP = in.getShort();
+        short[] STACK = new short[VirtualMachine.STACK_SIZE];
+        for (int i = 0; i < STACK.length; i++) {
+            STACK[i] = in.getShort();
+        }
+        byte soundTimer = in.get();
+        byte delayTimer = in.get();
+        boolean hires = in.get() != 0;
+        int planes = in.get();
+        int keys = in.getShort() & 0xFFFF;
+        long randomState = in.getLong();
+        long cycleCount = in.getLong();
+        int frameCycle = in.getInt();
+        int instructionsPerFrame = in.getInt();
+        QuirkProfile quirks = PROFILES[in.get()];
+
+        return new Snapshot(pages, V, I, PC, SP, STACK, soundTimer, delayTimer, screen, hires, planes, FLAGS, keys,
+                randomState, cycleCount, frameCycle, instructionsPerFrame, quirks);
+    }
+
+    /**
+     * Writes this snapshot in the binary format, leaving the stream open.
+     */
+    public void writeTo(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+
+        out.writeShort(pages[0].length);
+        out.writeShort(pages.length);
+        for (byte[] page : pages) {
+            if (isZero(page)) {
+                out.writeByte(0);
+            } else {
+                out.writeByte(1);
+                out.write(page);
+            }
+        }
+
+        out.write(V);
+        out.writeShort(I);
+        out.writeShort(PC);
+        out.writeShort(SP);
+        for (short entry : STACK) {
+            out.writeShort(entry);
+        }
+        out.writeByte(soundTimer);
+        out.writeByte(delayTimer);
+        out.writeShort(screen.length);
+        for (long word : screen) {
+            out.writeLong(word);
+        }
+        out.writeByte(hires ? 1 : 0);
+        out.writeByte(planes);
+        out.write(FLAGS);
+        out.writeShort(keys);
+        out.writeLong(randomState);
+        out.writeLong(cycleCount);
+        out.writeInt(frameCycle);
+        out.writeInt(instructionsPerFrame);
+        out.writeUTF(quirks.name());
+        out.flush();
+    }
+
+    /**
+     * Reads a snapshot written by {@link #writeTo(OutputStream)}.
+     *
+     * @throws IOException Thrown if the stream does not hold a snapshot this version can read
+     */
+    public static Snapshot readFrom(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a snapshot");
+        }
+        short version = in.readShort();
+        if (version < FIRST_VERSION || version > VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+
+        int pageSize = in.readUnsignedShort();
+        int pageCount = in.readUnsignedShort();
+        int memorySize = version == 1 ? V1_MEMORY_SIZE : VirtualMachine.MEMORY_SIZE;
+        if (pageSize != VirtualMachine.PAGE_SIZE || pageSize * pageCount != memorySize) {
+            throw new IOException("Snapshot memory size " + pageSize * pageCount + " does not match the machine");
+        }
+        byte[][] pages = new byte[VirtualMachine.MEMORY_SIZE / pageSize][];
+        for (int p = 0; p < pages.length; p++) {
+            pages[p] = new byte[pageSize];
+            if (p < pageCount && in.readByte() != 0) {
+                in.readFully(pages[p]);
+            }
+        }
+
+        byte[] V = new byte[VirtualMachine.NUMBER_REGISTERS];
+        in.readFully(V);
+        short I = in.readShort();
+        short PC = in.readShort();
+        short SP = in.readShort();
+        short[] STACK = new short[VirtualMachine.STACK_SIZE];
+        for (int i = 0; i < STACK.length; i++) {
+            STACK[i] = in.readShort();
+        }
+        byte soundTimer = in.readByte();
+        byte delayTimer = in.readByte();
+        long[] screen = new long[VirtualMachine.SCREEN_WORDS];
+        boolean hires = false;
+        int planes = 1;
+        byte[] FLAGS = new byte[VirtualMachine.NUMBER_REGISTERS];
+        int words = in.readUnsignedShort();
+        if (version == 1) {
+            // A long per low resolution row, the first word of the row in the first plane
+            if (words != VirtualMachine.SCREEN_HEIGHT) {
+                throw new IOException("Snapshot screen size " + words + " does not match the machine");
+            }
+            for (int y = 0; y < words; y++) {
+                screen[y * VirtualMachine.ROW_WORDS] = in.readLong();
+            }
+        } else {
+            if (words != VirtualMachine.SCREEN_WORDS) {
+                throw new IOException("Snapshot screen size " + words + " does not match the machine");
+            }
+            for (int i = 0; i < words; i++) {
+                screen[i] = in.readLong();
+            }
+            hires = in.readByte() != 0;
+            planes = in.readUnsignedByte();
+            in.readFully(FLAGS);
+        }
+        int keys = in.readUnsignedShort();
+        long randomState = in.readLong();
+        long cycleCount = in.readLong();
+        int frameCycle = in.readInt();
+        int instructionsPerFrame = in.readInt();
+        QuirkProfile quirks = QuirkProfile.MODERN;
+        if (version >= 3) {
+            String name = in.readUTF();
+            try {
+                quirks = QuirkProfile.valueOf(name);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Unknown quirk profile " + name);
+            }
+        }
+
+        return new Snapshot(pages, V, I, PC, SP, STACK, soundTimer, delayTimer, screen, hires, planes, FLAGS, keys,
+                randomState, cycleCount, frameCycle, instructionsPerFrame, quirks);
+    }
+
+    /**
+     * Saves this snapshot to a file, replacing it if it exists.
+     */
+    public void save(Path path) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(path))) {
+            writeTo(out);
+        }
+    }
+
+    public static Snapshot load(Path path) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(path))) {
+            return readFrom(in);
+        }
+    }
+
+    private static boolean pageEquals(byte[] page, byte[] image, int offset) {
+        for (int i = 0; i < page.length; i++) {
+            if (page[i] != image[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isZero(byte[] page) {
+        for (byte b : page) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,161 @@
+package me.vkandola.emulator;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Draws frames into an off-heap buffer of ARGB pixels in plain Java, for machines without a GPU, screenshots, and as
+ * pixels ready to upload to a texture.
+ * <p>
+ * The picture is always the high resolution screen scaled up by a whole number, low resolution pixels covering two by
+ * two high resolution ones, so the size never changes. Only rows that differ from the last frame drawn are redrawn.
+ * Each is turned into colours once at the machine's resolution, then widened into one row of the picture with runs
+ * of fills, and that row copied in as many times as it is tall.
+ * <p>
+ * With smoothing, each machine pixel is first split in four by Scale2x (EPX), which rounds off the corners of
+ * diagonal lines without blurring anything, so the scale has to be even.
+ */
+public class SoftwareRasterizer implements RenderBackend {
+    private final int scale;
+    private final boolean smooth;
+    private final int width;
+    private final int height;
+    private final IntBuffer pixels;
+    private final int[] colors = new int[Frame.LUMINANCE.length];
+
+    // Colours of the last frame drawn, a row of its width at a time, and rows of the picture being drawn
+    private final int[] source = new int[VirtualMachine.HIRES_WIDTH * VirtualMachine.HIRES_HEIGHT];
+    private final int[] top;
+    private final int[] bottom;
+    private final Frame drawn = new Frame();
+    private boolean empty = true;
+
+    /**
+     * @param scale  Pixels of the picture per high resolution pixel, in each direction
+     * @param smooth True to smooth with Scale2x, which needs an even scale
+     */
+    public SoftwareRasterizer(int scale, boolean smooth) {
+        if (scale < 1 || (smooth && scale % 2 != 0)) {
+            throw new IllegalArgumentException("Unsupported scale " + scale + (smooth ? " when smoothing" : ""));
+        }
+        this.scale = scale;
+        this.smooth = smooth;
+        width = VirtualMachine.HIRES_WIDTH * scale;
+        height = VirtualMachine.HIRES_HEIGHT * scale;
+        pixels = ByteBuffer.allocateDirect(width * height * Integer.BYTES).order(ByteOrder.nativeOrder()).asIntBuffer();
+        top = new int[width];
+        bottom = new int[width];
+        for (int color = 0; color < colors.length; color++) {
+            int luminance = Frame.LUMINANCE[color] & 0xFF;
+            colors[color] = 0xFF000000 | luminance << 16 | luminance << 8 | luminance;
+        }
+    }
+
+    @Override
+    public void draw(Frame frame) {
+        int frameWidth = frame.getWidth();
+        int frameHeight = frame.getHeight();
+        boolean redrawAll = empty || frame.isHighResolution() != drawn.isHighResolution();
+        long dirtyRows = 0;
+        for (int y = 0; y < frameHeight; y++) {
+            if (redrawAll || !frame.sameRow(drawn, y)) {
+                dirtyRows |= 1L << y;
+                for (int x = 0; x < frameWidth; x++) {
+                    source[y * frameWidth + x] = colors[frame.getPixel(x, y)];
+                }
+            }
+        }
+        if (dirtyRows == 0) {
+            return;
+        }
+        drawn.copyFrom(frame);
+        empty = false;
+
+        int size = scale * VirtualMachine.HIRES_WIDTH / frameWidth;
+        if (smooth) {
+            // Smoothing a row looks at the rows either side of it
+            dirtyRows |= dirtyRows << 1 | dirtyRows >>> 1;
+            dirtyRows &= frameHeight == Long.SIZE ? -1L : (1L << frameHeight) - 1;
+        }
+        for (; dirtyRows != 0; dirtyRows &= dirtyRows - 1) {
+            int y = Long.numberOfTrailingZeros(dirtyRows);
+            if (smooth) {
+                drawSmoothRow(y, frameWidth, frameHeight, size);
+            } else {
+                drawRow(y, frameWidth, size);
+            }
+        }
+        pixels.clear();
+    }
+
+    private void drawRow(int y, int frameWidth, int size) {
+        int start = y * frameWidth;
+        for (int x = 0; x < frameWidth; x++) {
+            Arrays.fill(top, x * size, (x + 1) * size, source[start + x]);
+        }
+        copyRows(top, y * size, size);
+    }
+
+    /**
+     * Scale2x: of the four quarters of a pixel, each takes the colour of the two neighbours it touches if they match
+     * each other and the other two neighbours don't.
+     */
+    private void drawSmoothRow(int y, int frameWidth, int frameHeight, int size) {
+        int half = size / 2;
+        int start = y * frameWidth;
+        int above = y == 0 ? start : start - frameWidth;
+        int below = y == frameHeight - 1 ? start : start + frameWidth;
+        for (int x = 0; x < frameWidth; x++) {
+            int p = source[start + x];
+            int a = source[above + x];
+            int d = source[below + x];
+            int c = x == 0 ? p : source[start + x - 1];
+            int b = x == frameWidth - 1 ? p : source[start + x + 1];
+            boolean smoothed = a != d && c != b;
+            int offset = x * size;
+            Arrays.fill(top, offset, offset + half, smoothed && c == a ? a : p);
+            Arrays.fill(top, offset + half, offset + size, smoothed && a == b ? b : p);
+            Arrays.fill(bottom, offset, offset + half, smoothed && d == c ? c : p);
+            Arrays.fill(bottom, offset + half, offset + size, smoothed && b == d ? d : p);
+        }
+        copyRows(top, y * size, half);
+        copyRows(bottom, y * size + half, half);
+    }
+
+    private void copyRows(int[] row, int first, int count) {
+        pixels.position(first * width);
+        for (int i = 0; i < count; i++) {
+            pixels.put(row);
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return The direct buffer drawn into, ARGB in native byte order from the top left a row at a time. Its position
+     * and limit are reset by every draw.
+     */
+    public IntBuffer getPixels() {
+        return pixels;
+    }
+
+    /**
+     * @return A copy of the picture, say to save as a screenshot
+     */
+    public BufferedImage toImage() {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        pixels.get(((DataBufferInt) image.getRaster().getDataBuffer()).getData());
+        pixels.clear();
+        return image;
+    }
+}
@@ -0,0 +1,284 @@
+package me.vkandola.emulator;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How well a running machine keeps up with real time, and how long the host takes to show what it does. Counters and
+ * {@link Histogram}s are fed by the emulation and display threads with a few atomic adds each frame, and read by a
+ * reporter thread that logs a line every period and keeps the figures {@link TelemetryMXBean} exports.
+ * <p>
+ * The machine is running slow when the real time ratio, timer ticks run against ticks due over the time not spent
+ * waiting for a key, drops below 1. Turbo mode takes it above.
+ */
+public class Telemetry implements TelemetryMXBean, Closeable {
+    public static final long DEFAULT_PERIOD_NANOS = 10_000_000_000L;
+    public static final String OBJECT_NAME = "me.vkandola.emulator:type=Telemetry";
+    private static final long FRAME_NANOS = 1_000_000_000L / FrameScheduler.FRAMES_PER_SECOND;
+    // Real time ratio below which the machine is behind, allowing for a frame's jitter in a period
+    private static final double BEHIND_RATIO = 0.98;
+    private static final Histogram.Summary EMPTY = new Histogram.Summary(0, 0, 0, 0, 0);
+
+    private final AtomicLong instructions = new AtomicLong();
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong keyWaitNanos = new AtomicLong();
+    private final Histogram frameNanos = new Histogram();
+    private final Histogram renderNanos = new Histogram();
+    private final Histogram swapNanos = new Histogram();
+    private final Histogram inputLatencyNanos = new Histogram();
+    private final Histogram keyWaits = new Histogram();
+
+    // Display thread only, when the key press not yet shown happened, or 0
+    private long pressedAt;
+
+    private final long periodNanos;
+    private final PrintStream log;
+    private final Thread thread;
+    private volatile boolean closing;
+    private ObjectName name;
+    // Figures for the last period, for the MBean
+    private volatile Interval last = new Interval(0, 0, 1, EMPTY, EMPTY, EMPTY, EMPTY, EMPTY);
+
+    /**
+     * The figures for one reporting period.
+     */
+    private static final class Interval {
+        final double instructionsPerSecond;
+        final double timerHz;
+        final double realTimeRatio;
+        final Histogram.Summary frameNanos;
+        final Histogram.Summary renderNanos;
+        final Histogram.Summary swapNanos;
+        final Histogram.Summary inputLatencyNanos;
+        final Histogram.Summary keyWaits;
+
+        Interval(double instructionsPerSecond, double timerHz, double realTimeRatio, Histogram.Summary frameNanos,
+                 Histogram.Summary renderNanos, Histogram.Summary swapNanos, Histogram.Summary inputLatencyNanos,
+                 Histogram.Summary keyWaits) {
+            this.instructionsPerSecond = instructionsPerSecond;
+            this.timerHz = timerHz;
+            this.realTimeRatio = realTimeRatio;
+            this.frameNanos = frameNanos;
+            this.renderNanos = renderNanos;
+            this.swapNanos = swapNanos;
+            this.inputLatencyNanos = inputLatencyNanos;
+            this.keyWaits = keyWaits;
+        }
+    }
+
+    public Telemetry() {
+        this(DEFAULT_PERIOD_NANOS, System.out);
+    }
+
+    /**
+     * @param periodNanos Time between reports
+     * @param log         Written a line every report, or null to only export over JMX
+     */
+    public Telemetry(long periodNanos, PrintStream log) {
+        if (periodNanos <= 0) {
+            throw new IllegalArgumentException("Telemetry period must be positive, got " + periodNanos);
+        }
+        this.periodNanos = periodNanos;
+        this.log = log;
+        thread = new Thread(this::report, "Telemetry");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Registers the MBean as {@link #OBJECT_NAME} with the platform MBean server and starts reporting. Carries on
+     * without JMX if the name is taken.
+     */
+    public void start() {
+        try {
+            name = new ObjectName(OBJECT_NAME);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        } catch (JMException e) {
+            System.out.printf("[Telemetry] Not exported over JMX: %s\n", e);
+            name = null;
+        }
+        thread.start();
+    }
+
+    /**
+     * Called on the emulation thread after each frame.
+     *
+     * @param cycles Instructions the frame executed
+     * @param nanos  Time the frame took, less any wait for a key
+     */
+    void frameRan(long cycles, long nanos) {
+        instructions.addAndGet(cycles);
+        frames.incrementAndGet();
+        frameNanos.record(nanos);
+    }
+
+    /**
+     * Called on the emulation thread after FX0A parked it waiting for a key.
+     */
+    void keyWaited(long nanos) {
+        keyWaitNanos.addAndGet(nanos);
+        keyWaits.record(nanos);
+    }
+
+    /**
+     * Called on the display thread when a key is pressed. Until a changed screen is displayed, later presses are
+     * taken to be part of the same input.
+     */
+    void keyPressed() {
+        if (pressedAt == 0) {
+            pressedAt = System.nanoTime();
+        }
+    }
+
+    /**
+     * Called on the display thread after each buffer swap.
+     *
+     * @param renderNanos Time spent uploading and drawing
+     * @param swapNanos   Time blocked in the swap
+     * @param changed     True if the screen displayed differs from the one before
+     */
+    void displayed(long renderNanos, long swapNanos, boolean changed) {
+        this.renderNanos.record(renderNanos);
+        this.swapNanos.record(swapNanos);
+        if (changed && pressedAt != 0) {
+            inputLatencyNanos.record(System.nanoTime() - pressedAt);
+            pressedAt = 0;
+        }
+    }
+
+    @Override
+    public long getInstructions() {
+        return instructions.get();
+    }
+
+    @Override
+    public long getFrames() {
+        return frames.get();
+    }
+
+    @Override
+    public long getKeyWaitNanos() {
+        return keyWaitNanos.get();
+    }
+
+    @Override
+    public double getInstructionsPerSecond() {
+        return last.instructionsPerSecond;
+    }
+
+    @Override
+    public double getTimerHz() {
+        return last.timerHz;
+    }
+
+    @Override
+    public double getRealTimeRatio() {
+        return last.realTimeRatio;
+    }
+
+    @Override
+    public boolean isBehind() {
+        return last.realTimeRatio < BEHIND_RATIO;
+    }
+
+    @Override
+    public Histogram.Summary getFrameNanos() {
+        return last.frameNanos;
+    }
+
+    @Override
+    public Histogram.Summary getRenderNanos() {
+        return last.renderNanos;
+    }
+
+    @Override
+    public Histogram.Summary getSwapNanos() {
+        return last.swapNanos;
+    }
+
+    @Override
+    public Histogram.Summary getInputLatencyNanos() {
+        return last.inputLatencyNanos;
+    }
+
+    @Override
+    public Histogram.Summary getKeyWaits() {
+        return last.keyWaits;
+    }
+
+    /**
+     * Stops reporting and unregisters the MBean.
+     */
+    @Override
+    public void close() {
+        closing = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException e) {
+                System.out.printf("[Telemetry] Unregistering the MBean failed: %s\n", e);
+            }
+        }
+    }
+
+    /**
+     * Reporter thread, works out each period's figures from the change in the counters and histograms.
+     */
+    private void report() {
+        long start = System.nanoTime();
+        long lastInstructions = 0;
+        long lastFrames = 0;
+        long lastKeyWait = 0;
+        while (true) {
+            long deadline = start + periodNanos;
+            long remaining;
+            while (!closing && (remaining = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, remaining);
+            }
+            if (closing) {
+                return;
+            }
+            long now = System.nanoTime();
+            long elapsed = now - start;
+            start = now;
+
+            long instructions = this.instructions.get();
+            long frames = this.frames.get();
+            long keyWait = keyWaitNanos.get();
+            long waited = keyWait - lastKeyWait;
+            long running = elapsed - waited;
+            Interval interval = new Interval((instructions - lastInstructions) * 1e9 / elapsed,
+                    (frames - lastFrames) * 1e9 / elapsed,
+                    running <= 0 ? 1 : (double) (frames - lastFrames) * FRAME_NANOS / running,
+                    frameNanos.interval(), renderNanos.interval(), swapNanos.interval(),
+                    inputLatencyNanos.interval(), keyWaits.interval());
+            lastInstructions = instructions;
+            lastFrames = frames;
+            lastKeyWait = keyWait;
+            last = interval;
+
+            if (log != null) {
+                log.printf("[Telemetry] %.0f instructions/s, timers at %.1f Hz, %.2fx real time%s, frame p50 %.3f ms "
+                                + "p99 %.3f ms, render p99 %.3f ms, swap p99 %.3f ms, input latency p50 %.1f ms "
+                                + "p99 %.1f ms over %d presses, %.1f s waiting for a key\n",
+                        interval.instructionsPerSecond, interval.timerHz, interval.realTimeRatio,
+                        interval.realTimeRatio < BEHIND_RATIO ? " (behind)" : "",
+                        interval.frameNanos.getP50Nanos() / 1e6, interval.frameNanos.getP99Nanos() / 1e6,
+                        interval.renderNanos.getP99Nanos() / 1e6, interval.swapNanos.getP99Nanos() / 1e6,
+                        interval.inputLatencyNanos.getP50Nanos() / 1e6,
+                        interval.inputLatencyNanos.getP99Nanos() / 1e6, interval.inputLatencyNanos.getCount(),
+                        waited / 1e9);
+            }
+        }
+    }
+}
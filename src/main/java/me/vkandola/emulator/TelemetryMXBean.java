@@ -0,0 +1,64 @@
+package me.vkandola.emulator;
+
+/**
+ * What {@link Telemetry} exports over JMX. Rates and histograms cover the last reporting interval, totals the whole
+ * run. Durations are in nanoseconds.
+ */
+public interface TelemetryMXBean {
+    /**
+     * @return Instructions executed, idle loops fast forwarded included
+     */
+    long getInstructions();
+
+    /**
+     * @return Frames run, each one 60Hz timer tick
+     */
+    long getFrames();
+
+    /**
+     * @return Time the emulation thread spent parked in FX0A waiting for a key
+     */
+    long getKeyWaitNanos();
+
+    double getInstructionsPerSecond();
+
+    /**
+     * @return Timer ticks per second of wall clock time
+     */
+    double getTimerHz();
+
+    /**
+     * @return Machine time over wall clock time not spent waiting for a key, below 1 when falling behind
+     */
+    double getRealTimeRatio();
+
+    /**
+     * @return True if the real time ratio is low enough that the machine is visibly running slow
+     */
+    boolean isBehind();
+
+    /**
+     * @return Time each frame took to emulate
+     */
+    Histogram.Summary getFrameNanos();
+
+    /**
+     * @return Time each displayed frame took to upload and draw, before swapping buffers
+     */
+    Histogram.Summary getRenderNanos();
+
+    /**
+     * @return Time blocked swapping buffers, waiting for vsync
+     */
+    Histogram.Summary getSwapNanos();
+
+    /**
+     * @return Time from a key press to the first changed screen displayed after it
+     */
+    Histogram.Summary getInputLatencyNanos();
+
+    /**
+     * @return Each wait for a key in FX0A
+     */
+    Histogram.Summary getKeyWaits();
+}
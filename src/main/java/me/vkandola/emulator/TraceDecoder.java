@@ -0,0 +1,132 @@
+package me.vkandola.emulator;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Turns a trace written by {@link Tracer} into text, a line per record, followed by a count of each kind of record.
+ * <p>
+ * Usage: {@code TraceDecoder [--summary] <trace>...}, with {@code --summary} printing only the counts.
+ */
+public class TraceDecoder {
+    private final MappedByteBuffer trace;
+    private long instructions;
+    private long unknownOpcodes;
+    private long lostRecords;
+
+    /**
+     * Maps a trace into memory.
+     *
+     * @throws IOException Thrown if the file can't be read or is not a trace this version can read
+     */
+    public TraceDecoder(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            trace = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (trace.remaining() < Integer.BYTES + 2 * Short.BYTES || trace.getInt() != Tracer.MAGIC) {
+            throw new IOException("Not a trace: " + path);
+        }
+        short version = trace.getShort();
+        if (version != Tracer.VERSION) {
+            throw new IOException("Unsupported trace version " + version);
+        }
+        short recordBytes = trace.getShort();
+        if (recordBytes != Tracer.RECORD_BYTES) {
+            throw new IOException("Unsupported trace record size " + recordBytes);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int arg = 0;
+        boolean summary = false;
+        if (arg < args.length && args[arg].equals("--summary")) {
+            summary = true;
+            arg++;
+        }
+        if (arg == args.length) {
+            System.out.println("Usage: TraceDecoder [--summary] <trace>...");
+            return;
+        }
+        PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)), false);
+        for (; arg < args.length; arg++) {
+            TraceDecoder decoder = new TraceDecoder(Paths.get(args[arg]));
+            decoder.decode(summary ? null : out);
+            out.printf("[Trace] %s: %d instructions, %d unknown opcodes, %d records lost\n", args[arg],
+                    decoder.instructions, decoder.unknownOpcodes, decoder.lostRecords);
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads every record left in the trace, counting each kind.
+     *
+     * @param out Written a line per record, or null to only count them
+     */
+    public void decode(PrintStream out) {
+        StringBuilder line = new StringBuilder();
+        while (trace.remaining() >= Tracer.RECORD_BYTES) {
+            long first = trace.getLong();
+            long second = trace.getLong();
+            int kind = (int) (first >>> Tracer.KIND_SHIFT);
+            long cycle = first & Tracer.CYCLE_MASK;
+            int pc = (int) (second >>> 48);
+            int opcode = (int) (second >>> 32) & 0xFFFF;
+            int registers = (int) (second >>> 16) & 0xFFFF;
+            int i = (int) second & 0xFFFF;
+            switch (kind) {
+                case (Tracer.INSTRUCTION):
+                    instructions++;
+                    break;
+                case (Tracer.UNKNOWN_OPCODE):
+                    unknownOpcodes++;
+                    break;
+                case (Tracer.LOST):
+                    lostRecords += second;
+                    break;
+                default:
+                    break;
+            }
+            if (out == null) {
+                continue;
+            }
+
+            line.setLength(0);
+            line.append(String.format("%12d  ", cycle));
+            if (kind == Tracer.LOST) {
+                line.append(second).append(" records lost");
+            } else if (kind == Tracer.INSTRUCTION || kind == Tracer.UNKNOWN_OPCODE) {
+                line.append(String.format("0x%03X  %04X  %s  I=0x%03X", pc, opcode,
+                        kind == Tracer.UNKNOWN_OPCODE ? "unknown" : Decoder.pattern(Decoder.op(Decoder.decode(opcode))),
+                        i));
+                for (int x = 0; x < 16; x++) {
+                    if ((registers & (1 << x)) != 0) {
+                        line.append(String.format("  V%X", x));
+                    }
+                }
+            } else {
+                line.append("record of unknown kind ").append(kind);
+            }
+            out.println(line);
+        }
+    }
+
+    public long getInstructions() {
+        return instructions;
+    }
+
+    public long getUnknownOpcodes() {
+        return unknownOpcodes;
+    }
+
+    public long getLostRecords() {
+        return lostRecords;
+    }
+}
@@ -0,0 +1,295 @@
+package me.vkandola.emulator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes what a machine does to a binary trace file, for reading back with {@link TraceDecoder}. Attach one with
+ * {@link VirtualMachine#setTracer(Tracer)}.
+ * <p>
+ * The machine's thread puts fixed size records into a ring of longs allocated up front, and a writer thread drains
+ * them through a {@link FileChannel}. Like a {@link ByteRing}, each side owns one counter and only reads the other's,
+ * so tracing never allocates, locks or waits. If the writer falls behind, records are dropped and a
+ * {@link #LOST} record in their place says how many.
+ * <p>
+ * The file is big-endian:
+ * <pre>
+ *   int     MAGIC, short VERSION, short RECORD_BYTES
+ *   records long of kind &lt;&lt; 56 | cycle, then a long of
+ *           PC &lt;&lt; 48 | opcode &lt;&lt; 32 | registers touched, bit per V register &lt;&lt; 16 | I
+ * </pre>
+ * For a {@link #LOST} record the second long is the number of records dropped just before it.
+ */
+public class Tracer implements Closeable {
+    public enum Level {
+        /**
+         * Only events the machine used to print, such as unknown opcodes. Compiled blocks keep running.
+         */
+        EVENTS,
+        /**
+         * Every instruction as well, before it is executed. Every instruction is interpreted.
+         */
+        INSTRUCTIONS
+    }
+
+    static final int MAGIC = 0x43385452; // "C8TR"
+    static final short VERSION = 1;
+    static final short RECORD_BYTES = 2 * Long.BYTES;
+
+    // Record kinds
+    static final int INSTRUCTION = 0;
+    static final int UNKNOWN_OPCODE = 1;
+    static final int LOST = 2;
+    static final int KIND_SHIFT = 56;
+    static final long CYCLE_MASK = (1L << KIND_SHIFT) - 1;
+
+    // 4 MB, enough to ride out the writer missing a scheduler time slice when both threads share a core
+    public static final int DEFAULT_BUFFERED_RECORDS = 1 << 18;
+    private static final int RECORDS_PER_WRITE = 4096;
+    private static final long IDLE_NANOS = 1_000_000L;
+
+    private final Level level;
+    private final FileChannel channel;
+    private final long[] ring; // Two longs per record
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); // Next record to write out, only set by the writer
+    private final AtomicLong tail = new AtomicLong(); // Next record to fill, only set by the machine's thread
+    private final Thread thread;
+    private volatile boolean closing;
+
+    // Machine thread only
+    private long headSeen; // A head read earlier, the ring has at least this much room
+    private long pendingLost;
+    private long lostRecords;
+
+    // Writer thread only
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(RECORDS_PER_WRITE * RECORD_BYTES);
+    private volatile long bytesWritten;
+
+    public Tracer(Path path, Level level) throws IOException {
+        this(path, level, DEFAULT_BUFFERED_RECORDS);
+    }
+
+    /**
+     * Creates or replaces the trace file, writes its header and starts the writer thread.
+     *
+     * @param bufferedRecords Records that may wait for the writer before more are dropped, rounded up to a power of
+     *                        two
+     */
+    public Tracer(Path path, Level level, int bufferedRecords) throws IOException {
+        if (bufferedRecords <= 0 || bufferedRecords > 1 << 28) {
+            throw new IllegalArgumentException("Buffered records out of range: " + bufferedRecords);
+        }
+        int records = 1;
+        while (records < bufferedRecords) {
+            records <<= 1;
+        }
+        this.level = level;
+        this.ring = new long[records * 2];
+        this.mask = records - 1;
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(Integer.BYTES + 2 * Short.BYTES);
+        header.putInt(MAGIC).putShort(VERSION).putShort(RECORD_BYTES).flip();
+        try {
+            while (header.hasRemaining()) {
+                bytesWritten += channel.write(header);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        thread = new Thread(this::drain, "Tracer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    /**
+     * Traces an instruction about to be executed.
+     *
+     * @param decoded The decoded instruction at pc
+     * @param opcode  The raw opcode at pc
+     */
+    void instruction(long cycle, int pc, int decoded, int opcode, int i) {
+        put(INSTRUCTION, cycle, pc, opcode, touched(decoded), i);
+    }
+
+    /**
+     * Traces an opcode the machine has no operation for, skipped over.
+     */
+    void unknownOpcode(long cycle, int pc, int opcode, int i) {
+        put(UNKNOWN_OPCODE, cycle, pc, opcode, 0, i);
+    }
+
+    private void put(int kind, long cycle, int pc, int opcode, int registers, int i) {
+        long t = tail.get();
+        // A dropped run is noted in the first record that fits after it, so it needs room for both
+        int needed = pendingLost == 0 ? 1 : 2;
+        if (t + needed - headSeen > mask + 1) {
+            headSeen = head.get();
+            if (t + needed - headSeen > mask + 1) {
+                pendingLost++;
+                lostRecords++;
+                return;
+            }
+        }
+        if (pendingLost != 0) {
+            int index = ((int) t & mask) * 2;
+            ring[index] = (long) LOST << KIND_SHIFT | (cycle & CYCLE_MASK);
+            ring[index + 1] = pendingLost;
+            pendingLost = 0;
+            t++;
+        }
+        int index = ((int) t & mask) * 2;
+        ring[index] = (long) kind << KIND_SHIFT | (cycle & CYCLE_MASK);
+        ring[index + 1] = (long) (pc & 0xFFFF) << 48 | (long) (opcode & 0xFFFF) << 32
+                | (long) (registers & 0xFFFF) << 16 | (i & 0xFFFF);
+        // Release the record before the writer can see the new tail
+        tail.lazySet(t + 1);
+    }
+
+    /**
+     * @return The V registers an instruction reads or writes, bit per register
+     */
+    static int touched(int decoded) {
+        int x = 1 << Decoder.x(decoded);
+        int y = 1 << Decoder.y(decoded);
+        int vf = 1 << 0xF;
+        switch (Decoder.op(decoded)) {
+            case (Decoder.OP_SE_VX_NN):
+            case (Decoder.OP_SNE_VX_NN):
+            case (Decoder.OP_LD_VX_NN):
+            case (Decoder.OP_ADD_VX_NN):
+            case (Decoder.OP_RND):
+            case (Decoder.OP_SKP):
+            case (Decoder.OP_SKNP):
+            case (Decoder.OP_LD_VX_DT):
+            case (Decoder.OP_LD_VX_K):
+            case (Decoder.OP_LD_DT):
+            case (Decoder.OP_LD_ST):
+            case (Decoder.OP_ADD_I):
+            case (Decoder.OP_LD_F):
+            case (Decoder.OP_LD_B):
+            case (Decoder.OP_LD_HF):
+                return x;
+            case (Decoder.OP_SE_VX_VY):
+            case (Decoder.OP_SNE_VX_VY):
+            case (Decoder.OP_LD_VX_VY):
+            case (Decoder.OP_OR):
+            case (Decoder.OP_AND):
+            case (Decoder.OP_XOR):
+                return x | y;
+            case (Decoder.OP_OR_RESET_VF):
+            case (Decoder.OP_AND_RESET_VF):
+            case (Decoder.OP_XOR_RESET_VF):
+            case (Decoder.OP_ADD_VX_VY):
+            case (Decoder.OP_SUB):
+            case (Decoder.OP_SHR):
+            case (Decoder.OP_SUBN):
+            case (Decoder.OP_SHL):
+            case (Decoder.OP_DRW):
+            case (Decoder.OP_DRW_CLIP):
+                return x | y | vf;
+            case (Decoder.OP_SHR_VX):
+            case (Decoder.OP_SHL_VX):
+                return x | vf;
+            case (Decoder.OP_JP_V0):
+                return 1;
+            case (Decoder.OP_JP_VX):
+                return 1 << (Decoder.nnn(decoded) >> 8);
+            case (Decoder.OP_STORE):
+            case (Decoder.OP_LOAD):
+            case (Decoder.OP_STORE_INCREMENT_BY_X):
+            case (Decoder.OP_LOAD_INCREMENT_BY_X):
+            case (Decoder.OP_STORE_KEEP_I):
+            case (Decoder.OP_LOAD_KEEP_I):
+            case (Decoder.OP_SAVE_FLAGS):
+            case (Decoder.OP_LOAD_FLAGS):
+                return (x << 1) - 1;
+            case (Decoder.OP_SAVE_RANGE):
+            case (Decoder.OP_LOAD_RANGE):
+                // VX to VY, in either direction
+                return (Math.max(x, y) << 1) - Math.min(x, y);
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @return Records dropped because the writer was too far behind
+     */
+    public long getLostRecords() {
+        return lostRecords;
+    }
+
+    /**
+     * @return Bytes written to the file so far, the header included
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Writes out the records already traced, then stops the writer thread and closes the file. Called on the
+     * machine's thread, after which nothing may be traced.
+     */
+    @Override
+    public void close() throws IOException {
+        closing = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    /**
+     * Writer thread. Records are copied out of the ring a buffer at a time and the ring freed before the write.
+     */
+    private void drain() {
+        boolean open = true;
+        while (true) {
+            // Read before draining, so that nothing traced before close is left behind
+            boolean last = closing;
+            long h = head.get();
+            long t = tail.get();
+            long end = Math.min(t, h + RECORDS_PER_WRITE);
+            for (long r = h; r < end; r++) {
+                int index = ((int) r & mask) * 2;
+                buffer.putLong(ring[index]).putLong(ring[index + 1]);
+            }
+            head.lazySet(end);
+
+            if (open && buffer.position() > 0) {
+                buffer.flip();
+                try {
+                    while (buffer.hasRemaining()) {
+                        bytesWritten += channel.write(buffer);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    System.out.printf("[Tracer] Writing the trace failed, tracing nothing more: %s\n", e);
+                    open = false;
+                }
+            }
+            buffer.clear();
+            if (end == t) {
+                if (last) {
+                    break;
+                }
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package me.vkandola.emulator;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Lock-free handoff of the latest value from one producer thread to one consumer thread.
+ * <p>
+ * The producer fills the back buffer and publishes it by swapping it with the middle one, the consumer takes the
+ * middle buffer by swapping it with the front one. Neither side ever waits on the other, the consumer just skips any
+ * values published in between its takes.
+ *
+ * @param <T> The type of the buffers, reused rather than reallocated
+ */
+public class TripleBuffer<T> {
+    // The middle buffer's index, plus FRESH if it was published since the consumer last took it
+    private static final int INDEX_MASK = 0x3;
+    private static final int FRESH = 0x4;
+
+    private final Object[] buffers = new Object[3];
+    private final AtomicInteger middle = new AtomicInteger(1);
+    private int back = 0;  // Only touched by the producer
+    private int front = 2; // Only touched by the consumer
+
+    public TripleBuffer(Supplier<T> factory) {
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = factory.get();
+        }
+    }
+
+    /**
+     * Producer side.
+     *
+     * @return The buffer to fill before the next {@link #publish()}
+     */
+    @SuppressWarnings("unchecked")
+    public T getBackBuffer() {
+        return (T) buffers[back];
+    }
+
+    /**
+     * Producer side, makes the back buffer the latest value.
+     */
+    public void publish() {
+        back = middle.getAndSet(back | FRESH) & INDEX_MASK;
+    }
+
+    /**
+     * Consumer side.
+     *
+     * @return The latest published buffer, or null if nothing was published since the last take
+     */
+    @SuppressWarnings("unchecked")
+    public T take() {
+        if ((middle.get() & FRESH) == 0) {
+            return null;
+        }
+        front = middle.getAndSet(front) & INDEX_MASK;
+        return (T) buffers[front];
+    }
+}
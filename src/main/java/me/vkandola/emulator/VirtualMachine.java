@@ -1,67 +1,128 @@
 package me.vkandola.emulator;
 
 import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Random;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Predicate;
 
 /**
  * The encapsulation of the Chip8 machine state (registers, memory, flags, etc), and program execution.
+ * <p>
+ * Also runs the SUPER-CHIP and XO-CHIP extensions: a 128x64 high resolution mode, 16x16 sprites, scrolling, a second
+ * bitplane and 64K of memory. Plain CHIP-8 ROMs never leave the 64x32 low resolution mode or the first plane.
  */
 public class VirtualMachine {
     // Memory layout
-    private static final int MEMORY_SIZE = 0x1000; // 4096/4K bytes
+    static final int MEMORY_SIZE = 0x10000; // 64K bytes, XO-CHIP's address space
     // Memory region used to store fonts, 
-    private static final int MEMORY_PROGRAM_START = 0x200; // 512 Bytes
+    static final int MEMORY_PROGRAM_START = 0x200; // 512 Bytes
     // Rest of memory is working memory of ROM and the ROM itself.
     private byte[] MEMORY = new byte[MEMORY_SIZE];
+    // Memory is captured by snapshots in pages, only copying the pages written since the last one
+    static final int PAGE_SIZE = 0x100;
+    private static final int PAGE_SHIFT = 8;
+    private static final int PAGE_COUNT = MEMORY_SIZE / PAGE_SIZE;
+    private boolean[] PAGE_DIRTY = new boolean[PAGE_COUNT];
+    // The last snapshot taken or restored, memory matches its pages apart from the dirty ones
+    private Snapshot lastSnapshot;
 
-    // State of the 16 possible key strokes
-    private static final int NUM_KEYS = 16;
-    private boolean KEY[] = new boolean[NUM_KEYS];
+    // State of the 16 possible key strokes, bit per key. Written by the input thread, read by the machine.
+    static final int NUM_KEYS = 16;
+    private final AtomicInteger keys = new AtomicInteger();
+    // Keys as last read by an instruction, changes to it are what the input recorder logs
+    private int observedKeys;
+    // Set while FX0A has found no key held, runFor and runUntil return until a key is pressed
+    private boolean waitingForKey;
+    private volatile Thread keyWaiter;
 
     // Timers for sound and delay
     private byte soundTimer;
     private byte delayTimer;
 
-    // Screen dimensions in local pixels
+    // Screen dimensions in local pixels, in low and high resolution
     public static final int SCREEN_WIDTH = 64;
     public static final int SCREEN_HEIGHT = 32;
-    // Monochrome frame buffer for the screen
-    private boolean SCREEN_BUFFER[] = new boolean[SCREEN_WIDTH * SCREEN_HEIGHT];
+    public static final int HIRES_WIDTH = 128;
+    public static final int HIRES_HEIGHT = 64;
+    // Frame buffer for the screen, a bitplane after another, each a row after another of ROW_WORDS longs with the
+    // leftmost pixel in the most significant bit of the first. Low resolution rows only use their first long.
+    public static final int PLANE_COUNT = 2;
+    static final int ROW_WORDS = HIRES_WIDTH / Long.SIZE;
+    static final int PLANE_WORDS = HIRES_HEIGHT * ROW_WORDS;
+    static final int SCREEN_WORDS = PLANE_COUNT * PLANE_WORDS;
+    private long SCREEN_BUFFER[] = new long[SCREEN_WORDS];
+    private boolean hires;
+    // Bit per plane drawn to, cleared and scrolled by instructions
+    private int planes = 1;
 
     // Registers from V0 to VF, 8-bit data registers, VF serves as flag register for some instructions
-    private static final int NUMBER_REGISTERS = 16;
-    private static final int FLAG_REGISTER = 0xF;
+    static final int NUMBER_REGISTERS = 16;
+    static final int FLAG_REGISTER = 0xF;
     private byte V[] = new byte[NUMBER_REGISTERS];
+    // SUPER-CHIP's persistent flags, saved from and loaded into registers by FX75 and FX85
+    private byte FLAGS[] = new byte[NUMBER_REGISTERS];
     // Single 16-bit address register, for memory I/O
     private short I;
     // Single 16-bit program counter, for fetching instructions
-    private short PC = MEMORY_PROGRAM_START; // Starts executing first instruction of rom
-    // Single 16-bit opcode, set each fetch cycle
-    private short OPCODE;
+    // Held as 0 to 0xFFFF rather than a short, as it indexes memory and the decode cache
+    private int PC = MEMORY_PROGRAM_START; // Starts executing first instruction of rom
+    // Decoded instruction for each memory location, filled in the first time it is executed
+    private int[] DECODE_CACHE = new int[MEMORY_SIZE];
 
     // Stack and stack pointer
-    private static final int STACK_SIZE = 16;
+    static final int STACK_SIZE = 16;
     private short STACK[] = new short[STACK_SIZE];
     private short SP; // Pointer into the stack
 
-    // Random generator
-    private static final int RANDOM_SEED = 7;
-    private Random random = new Random(RANDOM_SEED);
+    // Random generator, the same sequence as java.util.Random but with its state in a plain field
+    static final int RANDOM_SEED = 7;
+    private long randomState = Lcg.seed(RANDOM_SEED);
 
-    // Set to true if the graphics buffer changed.
+    // Set to true if the graphics buffer changed, the host is told at the end of the cycle.
     private boolean drawPending;
 
     // Cycle count
-    private int cycleCount = 0;
+    private long cycleCount = 0;
+    // Idle loops may be fast forwarded up to this cycle count, set by runFor for its duration
+    private long skipLimit;
+    private long skippedCycles;
 
-    private Runner runner;
+    // Timers tick at 60Hz, once every instructionsPerFrame cycles
+    public static final int DEFAULT_INSTRUCTIONS_PER_FRAME = 10;
+    private int instructionsPerFrame = DEFAULT_INSTRUCTIONS_PER_FRAME;
+    private int frameCycle; // Cycles executed since the last timer tick
+
+    private Host host = new HeadlessHost();
+    // Logs key changes for replay, null unless recording
+    private InputRecorder inputRecorder;
+    // Counts every instruction executed, null unless profiling
+    private Profiler profiler;
+    // Writes events, and every instruction at Level.INSTRUCTIONS, to a trace file, null unless tracing
+    private Tracer tracer;
+    // Breakpoints and watchpoints, null unless debugging
+    private Debugger debugger;
+    // True when every instruction has to be interpreted and seen by the profiler, tracer or debugger
+    private boolean instrumented;
+    // Set when the debugger stops a run, which returns early
+    private boolean stopped;
+    private long unknownOpcodes;
+
+    // Platform the ROM was written for, chosen as instructions are decoded
+    private QuirkProfile quirks = QuirkProfile.MODERN;
+
+    // Optional tier translating hot basic blocks, null when disabled
+    private Recompiler recompiler;
 
     // Fontset for, taken from http://devernay.free.fr/hacks/chip8/C8TECH10.HTM#font
-    private static final int FONT_HEIGHT = 5;
-    private short FONT[] = { // Short instead of byte b/c Java uses signed bytes.
+    static final int FONT_HEIGHT = 5;
+    static final short FONT[] = { // Short instead of byte b/c Java uses signed bytes.
             0xF0, 0x90, 0x90, 0x90, 0xF0, // 0
             0x20, 0x60, 0x20, 0x20, 0x70, // 1
             0xF0, 0x10, 0xF0, 0x80, 0xF0, // 2
@@ -79,7 +140,52 @@ public class VirtualMachine {
             0xF0, 0x80, 0xF0, 0x80, 0xF0, // E
             0xF0, 0x80, 0xF0, 0x80, 0x80  // F
     };
-    private static final int FONT_SIZE = 80; // 16 fonts with 5 rows per font.
+    static final int FONT_SIZE = 80; // 16 fonts with 5 rows per font.
+    // SUPER-CHIP's 8x10 digits, with XO-CHIP's A to F. Kept clear of the small font, as CHIP-8 ROMs that index past
+    // its end expect to find zeroes there.
+    static final int BIG_FONT_START = 0x100;
+    static final int BIG_FONT_HEIGHT = 10;
+    static final short BIG_FONT[] = {
+            0xFF, 0xFF, 0xC3, 0xC3, 0xC3, 0xC3, 0xC3, 0xC3, 0xFF, 0xFF, // 0
+            0x18, 0x78, 0x78, 0x18, 0x18, 0x18, 0x18, 0x18, 0xFF, 0xFF, // 1
+            0xFF, 0xFF, 0x03, 0x03, 0xFF, 0xFF, 0xC0, 0xC0, 0xFF, 0xFF, // 2
+            0xFF, 0xFF, 0x03, 0x03, 0xFF, 0xFF, 0x03, 0x03, 0xFF, 0xFF, // 3
+            0xC3, 0xC3, 0xC3, 0xC3, 0xFF, 0xFF, 0x03, 0x03, 0x03, 0x03, // 4
+            0xFF, 0xFF, 0xC0, 0xC0, 0xFF, 0xFF, 0x03, 0x03, 0xFF, 0xFF, // 5
+            0xFF, 0xFF, 0xC0, 0xC0, 0xFF, 0xFF, 0xC3, 0xC3, 0xFF, 0xFF, // 6
+            0xFF, 0xFF, 0x03, 0x03, 0x06, 0x0C, 0x18, 0x18, 0x18, 0x18, // 7
+            0xFF, 0xFF, 0xC3, 0xC3, 0xFF, 0xFF, 0xC3, 0xC3, 0xFF, 0xFF, // 8
+            0xFF, 0xFF, 0xC3, 0xC3, 0xFF, 0xFF, 0x03, 0x03, 0xFF, 0xFF, // 9
+            0x7E, 0xFF, 0xC3, 0xC3, 0xC3, 0xFF, 0xFF, 0xC3, 0xC3, 0xC3, // A
+            0xFC, 0xFC, 0xC3, 0xC3, 0xFC, 0xFC, 0xC3, 0xC3, 0xFC, 0xFC, // B
+            0x3C, 0xFF, 0xC3, 0xC0, 0xC0, 0xC0, 0xC0, 0xC3, 0xFF, 0x3C, // C
+            0xFC, 0xFE, 0xC3, 0xC3, 0xC3, 0xC3, 0xC3, 0xC3, 0xFE, 0xFC, // D
+            0xFF, 0xFF, 0xC0, 0xC0, 0xFF, 0xFF, 0xC0, 0xC0, 0xFF, 0xFF, // E
+            0xFF, 0xFF, 0xC0, 0xC0, 0xFF, 0xFF, 0xC0, 0xC0, 0xC0, 0xC0  // F
+    };
+
+    // Names of the instruction handlers, indexed by decoded operation
+    private static final String[] HANDLER_NAMES = {
+            null, "unknown", "cls", "ret", "jp", "call", "seVxNN", "sneVxNN", "seVxVy", "ldVxNN", "addVxNN",
+            "ldVxVy", "or", "and", "xor", "addVxVy", "sub", "shr", "subn", "shl", "sneVxVy", "ldI", "jpV0", "rnd",
+            "drw", "skp", "sknp", "ldVxDT", "ldVxK", "ldDT", "ldST", "addI", "ldF", "ldB", "store", "load", "scd",
+            "scr", "scl", "exit", "low", "high", "ldHF", "saveFlags", "loadFlags", "scu", "saveRange", "loadRange",
+            "ldILong", "plane", "orResetVF", "andResetVF", "xorResetVF", "shrVX", "shlVX", "storeIncrementByX",
+            "loadIncrementByX", "storeKeepI", "loadKeepI", "drwClip", "jpVX"
+    };
+    private static final MethodHandle[] HANDLERS = new MethodHandle[Decoder.NUM_OPS];
+
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodType type = MethodType.methodType(short.class, int.class);
+        try {
+            for (int op = Decoder.OP_UNKNOWN; op < Decoder.NUM_OPS; op++) {
+                HANDLERS[op] = lookup.findVirtual(VirtualMachine.class, HANDLER_NAMES[op], type);
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
 
     public VirtualMachine() {
         loadFont();
@@ -89,6 +195,9 @@ public class VirtualMachine {
         for (int i = 0; i < FONT_SIZE; i++) {
             MEMORY[i] = (byte) FONT[i];
         }
+        for (int i = 0; i < BIG_FONT.length; i++) {
+            MEMORY[BIG_FONT_START + i] = (byte) BIG_FONT[i];
+        }
     }
 
     /**
@@ -104,333 +213,1400 @@ public class VirtualMachine {
             System.out.printf("ROM is too big to fit into memory, %s=%d\n", path.toString(), romBytes.length);
         } else {
             System.arraycopy(romBytes, 0, MEMORY, MEMORY_PROGRAM_START, romBytes.length);
+            Arrays.fill(DECODE_CACHE, Decoder.NOT_DECODED);
+            Arrays.fill(PAGE_DIRTY, true);
+            if (recompiler != null) {
+                recompiler.reset();
+            }
             System.out.printf("ROM copied successfully, %s=%d\n", path.toString(), romBytes.length);
         }
 
     }
 
-    private void clearScreen() {
-        for (int i = 0; i < SCREEN_HEIGHT; i++) {
-            for (int j = 0; j < SCREEN_WIDTH; j++) {
-                SCREEN_BUFFER[i * SCREEN_HEIGHT + j] = false;
-            }
+    /**
+     * Writes a byte of memory, dropping any decoded instructions that overlap it so self-modifying code stays correct.
+     */
+    private void writeMemory(int address, byte value) {
+        MEMORY[address] = value;
+        PAGE_DIRTY[address >> PAGE_SHIFT] = true;
+        invalidate(address);
+        if (debugger != null) {
+            debugger.written(address, cycleCount);
         }
-        drawPending = true;
     }
 
-    private byte draw(int X, int Y, int N) {
-        boolean clearedPixel = false;
-        for (int i = 0; i < N; i++) {
-            byte data = MEMORY[I + i];
-            for (int j = 0; j < 8; j++) {
-                int pixelX = X + j;
-                int pixelY = Y + i;
-                if (pixelX >= SCREEN_WIDTH || pixelX < 0) {
-                    pixelX = pixelX % SCREEN_WIDTH;
-                }
-                if (pixelY >= SCREEN_HEIGHT || pixelY < 0) {
-                    pixelY = pixelY % SCREEN_HEIGHT;
+    /**
+     * Drops the decoded instructions and compiled blocks that overlap a byte of memory which has changed.
+     */
+    private void invalidate(int address) {
+        DECODE_CACHE[address] = Decoder.NOT_DECODED;
+        if (address > 0) {
+            DECODE_CACHE[address - 1] = Decoder.NOT_DECODED;
+        }
+        if (recompiler != null) {
+            recompiler.invalidate(address);
+        }
+    }
+
+    /**
+     * Clears the selected planes.
+     */
+    void clearScreen() {
+        for (int plane = 0; plane < PLANE_COUNT; plane++) {
+            if ((planes & (1 << plane)) == 0) {
+                continue;
+            }
+            int base = plane * PLANE_WORDS;
+            for (int i = 0; i < PLANE_WORDS; i++) {
+                if (SCREEN_BUFFER[base + i] != 0) {
+                    SCREEN_BUFFER[base + i] = 0;
+                    drawPending = true;
                 }
-                boolean oldvalue = SCREEN_BUFFER[pixelX + SCREEN_WIDTH * pixelY];
-                boolean drawValue = ((data & (0x80 >> j)) >> (7 - j)) == 1;
-                boolean newValue = oldvalue ^ drawValue;
-                if (oldvalue & !newValue) {
-                    clearedPixel = true;
+            }
+        }
+    }
+
+    /**
+     * Draws the sprite at I into every selected plane, wrapping it around the edges of the screen.
+     */
+    byte draw(int X, int Y, int N) {
+        return draw(X, Y, N, false);
+    }
+
+    /**
+     * Draws the sprite at I into every selected plane, each plane's sprite following the previous one's in memory.
+     * The sprite starts at X and Y wrapped onto the screen either way.
+     *
+     * @param N    Rows of 8 pixels, or 0 for 16 rows of 16 pixels
+     * @param clip True to cut the sprite off at the right and bottom edges, false to wrap it around them
+     * @return 1 if any pixel was turned off, else 0
+     */
+    byte draw(int X, int Y, int N, boolean clip) {
+        int address = I & 0xFFFF;
+        long collisions = 0;
+        for (int plane = 0; plane < PLANE_COUNT; plane++) {
+            if ((planes & (1 << plane)) != 0) {
+                collisions |= hires ? drawHires(plane * PLANE_WORDS, address, X, Y, N, clip)
+                        : drawLores(plane * PLANE_WORDS, address, X, Y, N, clip);
+                address += (N == 0) ? 32 : N;
+            }
+        }
+        return (byte) ((collisions != 0) ? 0x1 : 0x0);
+    }
+
+    private long drawLores(int base, int address, int X, int Y, int N, boolean clip) {
+        // Sprite rows are placed at the top of a screen row and rotated into position so they wrap around the right
+        // edge, or shifted so they fall off it.
+        int shift = X % SCREEN_WIDTH;
+        int top = Y % SCREEN_HEIGHT;
+        int rows = N == 0 ? 16 : N;
+        if (clip) {
+            rows = Math.min(rows, SCREEN_HEIGHT - top);
+        }
+        long collisions = 0;
+        for (int i = 0; i < rows; i++) {
+            long sprite = clip ? spriteRow(address, i, N) >>> shift : Long.rotateRight(spriteRow(address, i, N), shift);
+            if (sprite != 0) {
+                int row = (top + i) % SCREEN_HEIGHT;
+                int index = base + row * ROW_WORDS;
+                collisions |= SCREEN_BUFFER[index] & sprite;
+                SCREEN_BUFFER[index] ^= sprite;
+                drawPending = true;
+            }
+        }
+        return collisions;
+    }
+
+    private long drawHires(int base, int address, int X, int Y, int N, boolean clip) {
+        // The same, rotating across a row's two longs as if they were one 128 bit word
+        int shift = X % HIRES_WIDTH;
+        int top = Y % HIRES_HEIGHT;
+        int rows = N == 0 ? 16 : N;
+        if (clip) {
+            rows = Math.min(rows, HIRES_HEIGHT - top);
+        }
+        long collisions = 0;
+        for (int i = 0; i < rows; i++) {
+            long sprite = spriteRow(address, i, N);
+            if (sprite != 0) {
+                long left;
+                long right;
+                if (shift < Long.SIZE) {
+                    left = sprite >>> shift;
+                    right = (sprite << 1) << (Long.SIZE - 1 - shift);
+                } else {
+                    right = sprite >>> (shift - Long.SIZE);
+                    // What wrapped around to the left edge
+                    left = clip ? 0 : (sprite << 1) << (HIRES_WIDTH - 1 - shift);
                 }
-                SCREEN_BUFFER[pixelX + SCREEN_WIDTH * pixelY] = newValue;
+                int row = (top + i) % HIRES_HEIGHT;
+                int index = base + row * ROW_WORDS;
+                collisions |= (SCREEN_BUFFER[index] & left) | (SCREEN_BUFFER[index + 1] & right);
+                SCREEN_BUFFER[index] ^= left;
+                SCREEN_BUFFER[index + 1] ^= right;
+                drawPending = true;
+            }
+        }
+        return collisions;
+    }
+
+    /**
+     * @return Row i of the sprite at an address, its leftmost pixel in the most significant bit
+     */
+    private long spriteRow(int address, int i, int N) {
+        if (N == 0) {
+            int offset = address + 2 * i;
+            return (((MEMORY[offset & (MEMORY_SIZE - 1)] & 0xFFL) << 8)
+                    | (MEMORY[(offset + 1) & (MEMORY_SIZE - 1)] & 0xFFL)) << (Long.SIZE - 16);
+        }
+        return (MEMORY[(address + i) & (MEMORY_SIZE - 1)] & 0xFFL) << (Long.SIZE - 8);
+    }
+
+    /**
+     * Moves the selected planes down, or up for a negative count, by whole rows of the current resolution.
+     */
+    void scrollVertically(int rows) {
+        int height = getScreenHeight();
+        int moved = Math.min(Math.abs(rows), height) * ROW_WORDS;
+        int kept = height * ROW_WORDS - moved;
+        for (int plane = 0; plane < PLANE_COUNT; plane++) {
+            if ((planes & (1 << plane)) == 0) {
+                continue;
             }
-            // TODO When drawing things that overflow the screen edges, they should wrap around!
+            int base = plane * PLANE_WORDS;
+            if (rows > 0) {
+                System.arraycopy(SCREEN_BUFFER, base, SCREEN_BUFFER, base + moved, kept);
+                Arrays.fill(SCREEN_BUFFER, base, base + moved, 0);
+            } else {
+                System.arraycopy(SCREEN_BUFFER, base + moved, SCREEN_BUFFER, base, kept);
+                Arrays.fill(SCREEN_BUFFER, base + kept, base + kept + moved, 0);
+            }
+        }
+        drawPending = true;
+    }
 
+    /**
+     * Moves the selected planes right, or left for a negative count, by fewer than 64 pixels of the current
+     * resolution, shifting pixels from one long of a row into the other.
+     */
+    void scrollHorizontally(int pixels) {
+        int height = getScreenHeight();
+        int left = -pixels;
+        for (int plane = 0; plane < PLANE_COUNT; plane++) {
+            if ((planes & (1 << plane)) == 0) {
+                continue;
+            }
+            int end = plane * PLANE_WORDS + height * ROW_WORDS;
+            for (int index = plane * PLANE_WORDS; index < end; index += ROW_WORDS) {
+                long first = SCREEN_BUFFER[index];
+                long second = SCREEN_BUFFER[index + 1];
+                if (!hires) {
+                    SCREEN_BUFFER[index] = pixels > 0 ? first >>> pixels : first << left;
+                } else if (pixels > 0) {
+                    SCREEN_BUFFER[index] = first >>> pixels;
+                    SCREEN_BUFFER[index + 1] = (second >>> pixels) | (first << (Long.SIZE - pixels));
+                } else {
+                    SCREEN_BUFFER[index] = (first << left) | (second >>> (Long.SIZE - left));
+                    SCREEN_BUFFER[index + 1] = second << left;
+                }
+            }
         }
+        drawPending = true;
+    }
 
+    /**
+     * Switches resolution, which clears every plane.
+     */
+    void setHighResolution(boolean enabled) {
+        hires = enabled;
+        Arrays.fill(SCREEN_BUFFER, 0);
         drawPending = true;
-        return (byte) ((clearedPixel) ? 0x1 : 0x0);
     }
 
     public void cycle() {
-        // Fetch
-        OPCODE = 0x0;
-        OPCODE |= MEMORY[PC];
-        OPCODE <<= 8;
-        OPCODE |= MEMORY[PC + 1] & 0xFF;
+        if (instrumented) {
+            startRun();
+            instrumentedCycle();
+            return;
+        }
+        step();
+    }
+
+    private void step() {
+        PC = execute(decodeAt(PC)) & 0xFFFF;
+        endCycle();
+    }
+
+    /**
+     * Executes a cycle, checking it against the debugger's breakpoints and counting it with the profiler and tracing
+     * it first. Executes nothing if the debugger stops at a breakpoint.
+     */
+    private void instrumentedCycle() {
+        if (debugger != null && debugger.atBreakpoint(this, PC, cycleCount)) {
+            stopped = true;
+            return;
+        }
+        int decoded = decodeAt(PC);
+        if (tracer != null && tracer.getLevel() == Tracer.Level.INSTRUCTIONS) {
+            tracer.instruction(cycleCount, PC, decoded,
+                    ((MEMORY[PC] & 0xFF) << 8) | (MEMORY[(PC + 1) & (MEMORY_SIZE - 1)] & 0xFF), I);
+        }
+        if (profiler != null) {
+            profile(decoded);
+        }
+        PC = execute(decoded) & 0xFFFF;
+        endCycle();
+        if (debugger != null && debugger.getStop() != null) {
+            // A watched address was written
+            stopped = true;
+        }
+    }
+
+    private void profile(int decoded) {
+        int pixels = 0;
+        if (Decoder.op(decoded) == Decoder.OP_DRW || Decoder.op(decoded) == Decoder.OP_DRW_CLIP) {
+            int N = Decoder.n(decoded);
+            int bytes = Integer.bitCount(planes) * (N == 0 ? 32 : N);
+            for (int i = 0; i < bytes; i++) {
+                pixels += Integer.bitCount(MEMORY[(getI() + i) & (MEMORY_SIZE - 1)] & 0xFF);
+            }
+        }
+        profiler.count(PC, decoded, pixels);
+    }
+
+    private void startRun() {
+        stopped = false;
+        if (debugger != null) {
+            debugger.resume();
+        }
+    }
+
+    /**
+     * Finishes an instruction executed by one of the {@link Recompiler}'s compiled blocks.
+     */
+    static void commit(short nextPC, VirtualMachine vm) {
+        vm.PC = nextPC & 0xFFFF;
+        vm.endCycle();
+    }
+
+    /**
+     * @return The handler for a decoded operation, taking the machine and the decoded instruction and returning the
+     * address of the next instruction
+     */
+    static MethodHandle handler(int op) {
+        return HANDLERS[op];
+    }
+
+    /**
+     * Fetches the instruction at an address, decoding it only the first time the location is executed.
+     */
+    int decodeAt(int address) {
+        int decoded = DECODE_CACHE[address];
+        if (decoded == Decoder.NOT_DECODED) {
+            int next = (address + 1) & (MEMORY_SIZE - 1);
+            decoded = quirks.decode(((MEMORY[address] & 0xFF) << 8) | (MEMORY[next] & 0xFF));
+            DECODE_CACHE[address] = decoded;
+        }
+        return decoded;
+    }
+
+    /**
+     * Executes a decoded instruction located at PC.
+     *
+     * @return The address of the next instruction
+     */
+    private short execute(int decoded) {
+        switch (Decoder.op(decoded)) {
+            case (Decoder.OP_CLS):
+                return cls(decoded);
+            case (Decoder.OP_RET):
+                return ret(decoded);
+            case (Decoder.OP_JP):
+                return jp(decoded);
+            case (Decoder.OP_CALL):
+                return call(decoded);
+            case (Decoder.OP_SE_VX_NN):
+                return seVxNN(decoded);
+            case (Decoder.OP_SNE_VX_NN):
+                return sneVxNN(decoded);
+            case (Decoder.OP_SE_VX_VY):
+                return seVxVy(decoded);
+            case (Decoder.OP_LD_VX_NN):
+                return ldVxNN(decoded);
+            case (Decoder.OP_ADD_VX_NN):
+                return addVxNN(decoded);
+            case (Decoder.OP_LD_VX_VY):
+                return ldVxVy(decoded);
+            case (Decoder.OP_OR):
+                return or(decoded);
+            case (Decoder.OP_AND):
+                return and(decoded);
+            case (Decoder.OP_XOR):
+                return xor(decoded);
+            case (Decoder.OP_ADD_VX_VY):
+                return addVxVy(decoded);
+            case (Decoder.OP_SUB):
+                return sub(decoded);
+            case (Decoder.OP_SHR):
+                return shr(decoded);
+            case (Decoder.OP_SUBN):
+                return subn(decoded);
+            case (Decoder.OP_SHL):
+                return shl(decoded);
+            case (Decoder.OP_SNE_VX_VY):
+                return sneVxVy(decoded);
+            case (Decoder.OP_LD_I):
+                return ldI(decoded);
+            case (Decoder.OP_JP_V0):
+                return jpV0(decoded);
+            case (Decoder.OP_RND):
+                return rnd(decoded);
+            case (Decoder.OP_DRW):
+                return drw(decoded);
+            case (Decoder.OP_SKP):
+                return skp(decoded);
+            case (Decoder.OP_SKNP):
+                return sknp(decoded);
+            case (Decoder.OP_LD_VX_DT):
+                return ldVxDT(decoded);
+            case (Decoder.OP_LD_VX_K):
+                return ldVxK(decoded);
+            case (Decoder.OP_LD_DT):
+                return ldDT(decoded);
+            case (Decoder.OP_LD_ST):
+                return ldST(decoded);
+            case (Decoder.OP_ADD_I):
+                return addI(decoded);
+            case (Decoder.OP_LD_F):
+                return ldF(decoded);
+            case (Decoder.OP_LD_B):
+                return ldB(decoded);
+            case (Decoder.OP_STORE):
+                return store(decoded);
+            case (Decoder.OP_LOAD):
+                return load(decoded);
+            case (Decoder.OP_SCD):
+                return scd(decoded);
+            case (Decoder.OP_SCR):
+                return scr(decoded);
+            case (Decoder.OP_SCL):
+                return scl(decoded);
+            case (Decoder.OP_EXIT):
+                return exit(decoded);
+            case (Decoder.OP_LOW):
+                return low(decoded);
+            case (Decoder.OP_HIGH):
+                return high(decoded);
+            case (Decoder.OP_LD_HF):
+                return ldHF(decoded);
+            case (Decoder.OP_SAVE_FLAGS):
+                return saveFlags(decoded);
+            case (Decoder.OP_LOAD_FLAGS):
+                return loadFlags(decoded);
+            case (Decoder.OP_SCU):
+                return scu(decoded);
+            case (Decoder.OP_SAVE_RANGE):
+                return saveRange(decoded);
+            case (Decoder.OP_LOAD_RANGE):
+                return loadRange(decoded);
+            case (Decoder.OP_LD_I_LONG):
+                return ldILong(decoded);
+            case (Decoder.OP_PLANE):
+                return plane(decoded);
+            case (Decoder.OP_OR_RESET_VF):
+                return orResetVF(decoded);
+            case (Decoder.OP_AND_RESET_VF):
+                return andResetVF(decoded);
+            case (Decoder.OP_XOR_RESET_VF):
+                return xorResetVF(decoded);
+            case (Decoder.OP_SHR_VX):
+                return shrVX(decoded);
+            case (Decoder.OP_SHL_VX):
+                return shlVX(decoded);
+            case (Decoder.OP_STORE_INCREMENT_BY_X):
+                return storeIncrementByX(decoded);
+            case (Decoder.OP_LOAD_INCREMENT_BY_X):
+                return loadIncrementByX(decoded);
+            case (Decoder.OP_STORE_KEEP_I):
+                return storeKeepI(decoded);
+            case (Decoder.OP_LOAD_KEEP_I):
+                return loadKeepI(decoded);
+            case (Decoder.OP_DRW_CLIP):
+                return drwClip(decoded);
+            case (Decoder.OP_JP_VX):
+                return jpVX(decoded);
+            default:
+                return unknown(decoded);
+        }
+    }
+
+    // Instruction handlers, one per decoded operation. Each executes the instruction at PC and returns the address of
+    // the next one. They are kept small so compiled blocks can inline them.
+
+    private short cls(int decoded) {
+        clearScreen();
+        return (short) (PC + 2);
+    }
+
+    private short ret(int decoded) {
+        return STACK[SP--];
+    }
+
+    private short jp(int decoded) {
+        int target = Decoder.nnn(decoded);
+        if (target == PC || target == PC - 4) {
+            skipIdleLoop(target);
+        }
+        return (short) target;
+    }
+
+    private short call(int decoded) {
+        STACK[++SP] = (short) (PC + 2);
+        return (short) Decoder.nnn(decoded);
+    }
+
+    private short seVxNN(int decoded) {
         short NEXT_PC = (short) (PC + 2);
-        //System.out.printf("[Debug] OPCODE: %04x\t PC: %x \n", OPCODE, PC);
+        if ((V[Decoder.x(decoded)] & 0xFF) == Decoder.nn(decoded)) {
+            NEXT_PC = skip(NEXT_PC);
+        }
+        return NEXT_PC;
+    }
 
+    private short sneVxNN(int decoded) {
+        short NEXT_PC = (short) (PC + 2);
+        if ((V[Decoder.x(decoded)] & 0xFF) != Decoder.nn(decoded)) {
+            NEXT_PC = skip(NEXT_PC);
+        }
+        return NEXT_PC;
+    }
 
-        // Decode and Execute
-        switch (OPCODE & 0xF000) {
-            case (0x0000): {
-                switch (OPCODE & 0x0FFF) {
-                    case (0x00E0): {
-                        clearScreen();
-                    }
-                    break;
-                    case (0x00EE): {
-                        NEXT_PC = STACK[SP--];
-                    }
+    private short seVxVy(int decoded) {
+        short NEXT_PC = (short) (PC + 2);
+        if (V[Decoder.x(decoded)] == V[Decoder.y(decoded)]) {
+            NEXT_PC = skip(NEXT_PC);
+        }
+        return NEXT_PC;
+    }
+
+    private short ldVxNN(int decoded) {
+        V[Decoder.x(decoded)] = (byte) Decoder.nn(decoded);
+        return (short) (PC + 2);
+    }
+
+    private short addVxNN(int decoded) {
+        V[Decoder.x(decoded)] += (byte) Decoder.nn(decoded);
+        return (short) (PC + 2);
+    }
+
+    private short ldVxVy(int decoded) {
+        V[Decoder.x(decoded)] = V[Decoder.y(decoded)];
+        return (short) (PC + 2);
+    }
+
+    private short or(int decoded) {
+        int X = Decoder.x(decoded);
+        V[X] = (byte) (V[X] | V[Decoder.y(decoded)]);
+        return (short) (PC + 2);
+    }
+
+    private short and(int decoded) {
+        int X = Decoder.x(decoded);
+        V[X] = (byte) (V[X] & V[Decoder.y(decoded)]);
+        return (short) (PC + 2);
+    }
+
+    private short xor(int decoded) {
+        int X = Decoder.x(decoded);
+        V[X] = (byte) (V[X] ^ V[Decoder.y(decoded)]);
+        return (short) (PC + 2);
+    }
+
+    private short orResetVF(int decoded) {
+        int X = Decoder.x(decoded);
+        V[X] = (byte) (V[X] | V[Decoder.y(decoded)]);
+        V[FLAG_REGISTER] = 0;
+        return (short) (PC + 2);
+    }
+
+    private short andResetVF(int decoded) {
+        int X = Decoder.x(decoded);
+        V[X] = (byte) (V[X] & V[Decoder.y(decoded)]);
+        V[FLAG_REGISTER] = 0;
+        return (short) (PC + 2);
+    }
+
+    private short xorResetVF(int decoded) {
+        int X = Decoder.x(decoded);
+        V[X] = (byte) (V[X] ^ V[Decoder.y(decoded)]);
+        V[FLAG_REGISTER] = 0;
+        return (short) (PC + 2);
+    }
+
+    // Arithmetic and shifts set VF last, so that it holds the carry, borrow or bit shifted out even when X is F
+
+    private short addVxVy(int decoded) {
+        int X = Decoder.x(decoded);
+        int sum = (V[X] & 0xFF) + (V[Decoder.y(decoded)] & 0xFF);
+        V[X] = (byte) sum;
+        V[FLAG_REGISTER] = (byte) (sum > 0xFF ? 1 : 0);
+        return (short) (PC + 2);
+    }
+
+    private short sub(int decoded) {
+        int X = Decoder.x(decoded);
+        int l = V[X] & 0xFF;
+        int r = V[Decoder.y(decoded)] & 0xFF;
+        V[X] = (byte) (l - r);
+        V[FLAG_REGISTER] = (byte) (l >= r ? 1 : 0);
+        return (short) (PC + 2);
+    }
+
+    private short shr(int decoded) {
+        int value = V[Decoder.y(decoded)] & 0xFF;
+        V[Decoder.x(decoded)] = (byte) (value >>> 1);
+        V[FLAG_REGISTER] = (byte) (value & 0x01);
+        return (short) (PC + 2);
+    }
+
+    private short shrVX(int decoded) {
+        int X = Decoder.x(decoded);
+        int value = V[X] & 0xFF;
+        V[X] = (byte) (value >>> 1);
+        V[FLAG_REGISTER] = (byte) (value & 0x01);
+        return (short) (PC + 2);
+    }
+
+    private short subn(int decoded) {
+        int X = Decoder.x(decoded);
+        int l = V[Decoder.y(decoded)] & 0xFF;
+        int r = V[X] & 0xFF;
+        V[X] = (byte) (l - r);
+        V[FLAG_REGISTER] = (byte) (l >= r ? 1 : 0);
+        return (short) (PC + 2);
+    }
+
+    private short shl(int decoded) {
+        int value = V[Decoder.y(decoded)] & 0xFF;
+        V[Decoder.x(decoded)] = (byte) (value << 1);
+        V[FLAG_REGISTER] = (byte) (value >>> 7);
+        return (short) (PC + 2);
+    }
+
+    private short shlVX(int decoded) {
+        int X = Decoder.x(decoded);
+        int value = V[X] & 0xFF;
+        V[X] = (byte) (value << 1);
+        V[FLAG_REGISTER] = (byte) (value >>> 7);
+        return (short) (PC + 2);
+    }
+
+    private short sneVxVy(int decoded) {
+        short NEXT_PC = (short) (PC + 2);
+        if (V[Decoder.x(decoded)] != V[Decoder.y(decoded)]) {
+            NEXT_PC = skip(NEXT_PC);
+        }
+        return NEXT_PC;
+    }
+
+    private short ldI(int decoded) {
+        I = (short) Decoder.nnn(decoded);
+        return (short) (PC + 2);
+    }
+
+    private short jpV0(int decoded) {
+        return (short) ((V[0] & 0xFF) + Decoder.nnn(decoded));
+    }
+
+    private short jpVX(int decoded) {
+        int NNN = Decoder.nnn(decoded);
+        return (short) ((V[NNN >> 8] & 0xFF) + NNN);
+    }
+
+    private short rnd(int decoded) {
+        randomState = Lcg.next(randomState);
+        int randomValue = Lcg.value(randomState) % 255;
+        V[Decoder.x(decoded)] = (byte) (randomValue & Decoder.nn(decoded));
+        return (short) (PC + 2);
+    }
+
+    private short drw(int decoded) {
+        V[0xF] = draw(V[Decoder.x(decoded)] & 0xFF, V[Decoder.y(decoded)] & 0xFF, Decoder.n(decoded), false);
+        return (short) (PC + 2);
+    }
+
+    private short drwClip(int decoded) {
+        V[0xF] = draw(V[Decoder.x(decoded)] & 0xFF, V[Decoder.y(decoded)] & 0xFF, Decoder.n(decoded), true);
+        return (short) (PC + 2);
+    }
+
+    private short skp(int decoded) {
+        short NEXT_PC = (short) (PC + 2);
+        if ((readKeys() & (1 << Decoder.x(decoded))) != 0) {
+            NEXT_PC = skip(NEXT_PC);
+        }
+        return NEXT_PC;
+    }
+
+    private short sknp(int decoded) {
+        short NEXT_PC = (short) (PC + 2);
+        if ((readKeys() & (1 << Decoder.x(decoded))) == 0) {
+            NEXT_PC = skip(NEXT_PC);
+        }
+        return NEXT_PC;
+    }
+
+    private short ldVxDT(int decoded) {
+        V[Decoder.x(decoded)] = delayTimer;
+        return (short) (PC + 2);
+    }
+
+    private short ldVxK(int decoded) {
+        int held = readKeys();
+        if (held != 0) {
+            waitingForKey = false;
+            V[Decoder.x(decoded)] = (byte) Integer.numberOfTrailingZeros(held);
+            return (short) (PC + 2);
+        }
+
+        // Halt, this instruction is retried once a key is pressed
+        waitingForKey = true;
+        return (short) PC;
+    }
+
+    private short ldDT(int decoded) {
+        delayTimer = V[Decoder.x(decoded)];
+        return (short) (PC + 2);
+    }
+
+    private short ldST(int decoded) {
+        soundTimer = V[Decoder.x(decoded)];
+        return (short) (PC + 2);
+    }
+
+    private short addI(int decoded) {
+        I += V[Decoder.x(decoded)] & 0xFF;
+        return (short) (PC + 2);
+    }
+
+    private short ldF(int decoded) {
+        I = (short) (FONT_HEIGHT * (V[Decoder.x(decoded)] & 0xFF));
+        return (short) (PC + 2);
+    }
+
+    private short ldB(int decoded) {
+        int number = V[Decoder.x(decoded)] & 0xFF;
+        writeMemory(I & 0xFFFF, (byte) (number / 100));
+        writeMemory((I + 1) & 0xFFFF, (byte) (number / 10 % 10));
+        writeMemory((I + 2) & 0xFFFF, (byte) (number % 10));
+        return (short) (PC + 2);
+    }
+
+    private short store(int decoded) {
+        int X = Decoder.x(decoded);
+        storeRegisters(X);
+        I += X + 1;
+        return (short) (PC + 2);
+    }
+
+    private short storeIncrementByX(int decoded) {
+        int X = Decoder.x(decoded);
+        storeRegisters(X);
+        I += X;
+        return (short) (PC + 2);
+    }
+
+    private short storeKeepI(int decoded) {
+        storeRegisters(Decoder.x(decoded));
+        return (short) (PC + 2);
+    }
+
+    private short load(int decoded) {
+        int X = Decoder.x(decoded);
+        loadRegisters(X);
+        I += X + 1;
+        return (short) (PC + 2);
+    }
+
+    private short loadIncrementByX(int decoded) {
+        int X = Decoder.x(decoded);
+        loadRegisters(X);
+        I += X;
+        return (short) (PC + 2);
+    }
+
+    private short loadKeepI(int decoded) {
+        loadRegisters(Decoder.x(decoded));
+        return (short) (PC + 2);
+    }
+
+    /**
+     * Copies V0 to VX into memory from I on, leaving I as it is.
+     */
+    private void storeRegisters(int X) {
+        for (int i = 0; i <= X; i++) {
+            writeMemory((I + i) & 0xFFFF, V[i]);
+        }
+    }
+
+    private void loadRegisters(int X) {
+        for (int i = 0; i <= X; i++) {
+            V[i] = MEMORY[(I + i) & 0xFFFF];
+        }
+    }
+
+    private short scd(int decoded) {
+        scrollVertically(Decoder.n(decoded));
+        return (short) (PC + 2);
+    }
+
+    private short scr(int decoded) {
+        scrollHorizontally(4);
+        return (short) (PC + 2);
+    }
+
+    private short scl(int decoded) {
+        scrollHorizontally(-4);
+        return (short) (PC + 2);
+    }
+
+    private short exit(int decoded) {
+        // There is no interpreter to return to, so stop here as if jumping to itself
+        skipIdleLoop(PC);
+        return (short) PC;
+    }
+
+    private short low(int decoded) {
+        setHighResolution(false);
+        return (short) (PC + 2);
+    }
+
+    private short high(int decoded) {
+        setHighResolution(true);
+        return (short) (PC + 2);
+    }
+
+    private short ldHF(int decoded) {
+        I = (short) (BIG_FONT_START + BIG_FONT_HEIGHT * (V[Decoder.x(decoded)] & 0xF));
+        return (short) (PC + 2);
+    }
+
+    private short saveFlags(int decoded) {
+        System.arraycopy(V, 0, FLAGS, 0, Decoder.x(decoded) + 1);
+        return (short) (PC + 2);
+    }
+
+    private short loadFlags(int decoded) {
+        System.arraycopy(FLAGS, 0, V, 0, Decoder.x(decoded) + 1);
+        return (short) (PC + 2);
+    }
+
+    private short scu(int decoded) {
+        scrollVertically(-Decoder.n(decoded));
+        return (short) (PC + 2);
+    }
+
+    private short saveRange(int decoded) {
+        // VX to VY in either direction, from I onwards, leaving I as it is
+        int X = Decoder.x(decoded);
+        int Y = Decoder.y(decoded);
+        int step = X <= Y ? 1 : -1;
+        for (int i = 0; i <= Math.abs(Y - X); i++) {
+            writeMemory((getI() + i) & (MEMORY_SIZE - 1), V[X + i * step]);
+        }
+        return (short) (PC + 2);
+    }
+
+    private short loadRange(int decoded) {
+        int X = Decoder.x(decoded);
+        int Y = Decoder.y(decoded);
+        int step = X <= Y ? 1 : -1;
+        for (int i = 0; i <= Math.abs(Y - X); i++) {
+            V[X + i * step] = MEMORY[(getI() + i) & (MEMORY_SIZE - 1)];
+        }
+        return (short) (PC + 2);
+    }
+
+    private short ldILong(int decoded) {
+        int address = (PC + 2) & (MEMORY_SIZE - 1);
+        I = (short) (((MEMORY[address] & 0xFF) << 8) | (MEMORY[(address + 1) & (MEMORY_SIZE - 1)] & 0xFF));
+        return (short) (PC + 4);
+    }
+
+    private short plane(int decoded) {
+        planes = Decoder.x(decoded) & ((1 << PLANE_COUNT) - 1);
+        return (short) (PC + 2);
+    }
+
+    /**
+     * @return The address after the instruction at next, which is four bytes long if it is F000 NNNN
+     */
+    private short skip(short next) {
+        int address = next & 0xFFFF;
+        boolean longLoad = MEMORY[address] == (byte) 0xF0 && MEMORY[(address + 1) & (MEMORY_SIZE - 1)] == 0;
+        return (short) (longLoad ? address + 4 : address + 2);
+    }
+
+    private short unknown(int decoded) {
+        unknownOpcodes++;
+        if (tracer != null) {
+            tracer.unknownOpcode(cycleCount, PC, Decoder.opcode(decoded), I);
+        }
+        return (short) (PC + 2);
+    }
+
+    /**
+     * Fast forwards a loop that can't change anything until the timers next tick, as if it had run, up to the cycle
+     * before the tick or the end of the current {@link #runFor(long)}. Recognizes a 1NNN jumping to itself, and a
+     * delay timer poll of FX07 followed by 3XNN or 4XNN that skips this jump back once the timer reads a value.
+     *
+     * @param target Address this jump at PC goes to
+     */
+    private void skipIdleLoop(int target) {
+        // Cycles after this one that may be skipped
+        long skippable = Math.min(instructionsPerFrame - frameCycle - 2, skipLimit - cycleCount - 1);
+        if (skippable <= 0) {
+            return;
+        }
+        if (target == PC) {
+            skipCycles(skippable);
+            return;
+        }
+
+        int load = decodeAt(target);
+        int test = decodeAt(target + 2);
+        int X = Decoder.x(load);
+        if (Decoder.op(load) != Decoder.OP_LD_VX_DT || Decoder.x(test) != X) {
+            return;
+        }
+        // Compared the way seVxNN and sneVxNN compare, the timer stays put until the tick so every pass agrees
+        boolean equal = (delayTimer & 0xFF) == Decoder.nn(test);
+        boolean looping;
+        if (Decoder.op(test) == Decoder.OP_SE_VX_NN) {
+            looping = !equal;
+        } else if (Decoder.op(test) == Decoder.OP_SNE_VX_NN) {
+            looping = equal;
+        } else {
+            return;
+        }
+        long passes = skippable / 3;
+        if (looping && passes > 0) {
+            V[X] = delayTimer;
+            skipCycles(passes * 3);
+        }
+    }
+
+    private void skipCycles(long cycles) {
+        cycleCount += cycles;
+        frameCycle += (int) cycles;
+        skippedCycles += cycles;
+    }
+
+    private void endCycle() {
+        cycleCount++;
+
+        if (++frameCycle >= instructionsPerFrame) {
+            frameCycle = 0;
+            tickTimers();
+        }
+
+        if (drawPending) {
+            drawPending = false;
+            host.refreshScreen(this);
+        }
+    }
+
+    private void tickTimers() {
+        // Timers hold 0 to 255 in a byte, so any non-zero value is running
+        host.tickSound(soundTimer != 0);
+        if (soundTimer != 0) {
+            soundTimer--;
+        }
+        if (delayTimer != 0) {
+            delayTimer--;
+        }
+    }
+
+    /**
+     * Executes the rest of the current frame, up to and including the next timer tick, or until FX0A halts the
+     * machine.
+     *
+     * @return The number of cycles executed
+     */
+    public long runFrame() {
+        return runFor(instructionsPerFrame - frameCycle);
+    }
+
+    /**
+     * Executes cycles back to back, as fast as the host CPU allows. Returns early if FX0A halts the machine to wait
+     * for a key, see {@link #awaitKey()}, or if the {@link Debugger} stops it. Idle loops are fast forwarded to the
+     * next timer tick, with the same result as running them.
+     *
+     * @param cycles The number of cycles to execute
+     * @return The number of cycles executed
+     */
+    public long runFor(long cycles) {
+        long start = cycleCount;
+        long end = start + cycles;
+        if (instrumented) {
+            // Compiled blocks and skipped idle loops can't be counted, traced or checked for breakpoints, every
+            // instruction is interpreted
+            startRun();
+            while (cycleCount < end) {
+                instrumentedCycle();
+                if (waitingForKey || stopped) {
                     break;
-                    default:
-                        System.out.printf("[Decode] Unimplemented opcode=%04x\n", OPCODE);
                 }
             }
-            break;
-            case (0x1000):
-                NEXT_PC = (short) (OPCODE & 0x0FFF);
-                break;
-            case (0x2000):
-                STACK[++SP] = NEXT_PC;
-                NEXT_PC = (short) (OPCODE & 0x0FFF);
-                break;
-            case (0x3000):
-                if (V[(OPCODE & 0x0F00) >> 8] == (OPCODE & 0x00FF)) {
-                    NEXT_PC += 2;
-                }
-                break;
-            case (0x4000):
-                if (V[(OPCODE & 0x0F00) >> 8] != (OPCODE & 0x00FF)) {
-                    NEXT_PC += 2;
-                }
-                break;
-            case (0x5000):
-                if (V[(OPCODE & 0x0F00) >> 8] == V[(OPCODE & 0x00F0) >> 4]) {
-                    NEXT_PC += 2;
-                }
-                break;
-            case (0x6000):
-                V[(OPCODE & 0x0F00) >> 8] = (byte) (OPCODE & 0x00FF);
-                break;
-            case (0x7000):
-                V[(OPCODE & 0x0F00) >> 8] += (byte) (OPCODE & 0x00FF);
-                break;
-            case (0x8000): {
-                int X = (OPCODE & 0x0F00) >> 8;
-                int Y = (OPCODE & 0x00F0) >> 4;
-                switch (OPCODE & 0x000F) {
-                    case (0x0): {
-                        V[X] = V[Y];
-                    }
-                    break;
-                    case (0x1): {
-                        V[X] = (byte) (V[X] | V[Y]);
-                    }
-                    break;
-                    case (0x2): {
-                        V[X] = (byte) (V[X] & V[Y]);
-                    }
-                    break;
-                    case (0x3): {
-                        V[X] = (byte) (V[X] ^ V[Y]);
-                    }
-                    break;
-                    case (0x4): {
-                        int sum = V[X] + V[Y];
-                        V[FLAG_REGISTER] = (byte) (((~0xFFFF & sum) != 0) ? 1 : 0);
-                        V[X] = (byte) sum;
-                    }
-                    break;
-                    case (0x5): {
-                        int l = V[X] & 0xFFFF;
-                        int r = V[Y] & 0xFFFF;
-                        V[FLAG_REGISTER] = (byte) ((l < r) ? 1 : 0);
-                        V[X] = (byte) (l - r);
-                    }
-                    break;
-                    case (0x6): {
-                        int value = V[Y] & 0xFFFF;
-                        V[FLAG_REGISTER] = (byte) (((value & 0x0001) == 0x0001) ? 1 : 0);
-                        V[Y] = (byte) (value >>> 1);
-                        V[X] = V[Y];
-                    }
-                    break;
-                    case (0x7): {
-                        int l = V[Y] & 0xFFFF;
-                        int r = V[X] & 0xFFFF;
-                        V[FLAG_REGISTER] = (byte) ((l < r) ? 1 : 0);
-                        V[X] = (byte) (l - r);
-                    }
-                    break;
-                    case (0xE): {
-                        int value = V[Y] & 0xFFFF;
-                        V[FLAG_REGISTER] = (byte) (((value & 0x8000) == 0x8000) ? 1 : 0);
-                        V[Y] = (byte) (value >>> 1);
-                        V[X] = V[Y];
+            return cycleCount - start;
+        }
+        skipLimit = end;
+        try {
+            while (cycleCount < end) {
+                if (recompiler != null && recompiler.run(PC, end - cycleCount) > 0) {
+                    if (waitingForKey) {
+                        break;
                     }
+                    continue;
+                }
+                step();
+                if (waitingForKey) {
                     break;
-                    default:
-                        System.out.printf("[Decode] Unimplemented opcode=%04x\n", OPCODE);
+                }
+            }
+        } finally {
+            skipLimit = 0;
+        }
+        return cycleCount - start;
+    }
 
+    /**
+     * Executes cycles back to back until the condition holds, checking it before every cycle.
+     * With the recompiler enabled the condition is checked before every compiled block instead. Returns early if
+     * FX0A halts the machine to wait for a key or the {@link Debugger} stops it. Idle loops are run rather than fast
+     * forwarded, so that the condition sees every cycle.
+     *
+     * @param condition The condition to stop at
+     * @return The number of cycles executed
+     */
+    public long runUntil(Predicate<VirtualMachine> condition) {
+        long executed = 0;
+        if (instrumented) {
+            startRun();
+            while (!condition.test(this)) {
+                long before = cycleCount;
+                instrumentedCycle();
+                executed += cycleCount - before;
+                if (waitingForKey || stopped) {
+                    break;
                 }
             }
-            break;
-            case (0x9000): {
-                int X = (OPCODE & 0x0F00) >> 8;
-                int Y = (OPCODE & 0x00F0) >> 4;
-                switch (OPCODE & 0x000F) {
-                    case (0x0): {
-                        if (V[X] != V[Y]) {
-                            NEXT_PC += 2;
-                        }
+            return executed;
+        }
+        while (!condition.test(this)) {
+            if (recompiler != null) {
+                int blockCycles = recompiler.run(PC, Long.MAX_VALUE);
+                if (blockCycles > 0) {
+                    executed += blockCycles;
+                    if (waitingForKey) {
+                        break;
                     }
-                    break;
-                    default:
-                        System.out.printf("[Decode] Unimplemented opcode=%04x\n", OPCODE);
-
+                    continue;
                 }
             }
-            break;
-            case (0xA000):
-                I = (short) (OPCODE & 0x0FFF);
+            step();
+            executed++;
+            if (waitingForKey) {
                 break;
-            case (0xB000): {
-                int base = V[0] & 0xFFFF;
-                int offset = OPCODE & 0xFFF;
-                NEXT_PC = (short) (base + offset);
             }
-            break;
-            case (0xC000): {
-                int X = (OPCODE & 0x0F00) >> 8;
-                int NN = OPCODE & 0x00FF;
-                int randomValue = random.nextInt() % 255;
-                V[X] = (byte) (randomValue & NN);
-            }
-            break;
-            case (0xD000): {
-                int X = (OPCODE & 0x0F00) >> 8;
-                int Y = (OPCODE & 0x00F0) >> 4;
-                int N = OPCODE & 0x000F;
-                V[0xF] = draw(V[X], V[Y], N);
+        }
+        return executed;
+    }
+
+    /**
+     * @param y The row, from the top of the screen
+     * @return The first plane's leftmost 64 pixels of the row, the whole row in low resolution, the leftmost pixel in
+     * the most significant bit
+     */
+    public long getScreenRow(int y) {
+        return SCREEN_BUFFER[y * ROW_WORDS];
+    }
+
+    /**
+     * @param plane The bitplane
+     * @param y     The row, from the top of the screen
+     * @param word  0 for the leftmost 64 pixels of the row, 1 for the rest in high resolution
+     * @return The pixels, the leftmost pixel in the most significant bit
+     */
+    public long getScreenWord(int plane, int y, int word) {
+        return SCREEN_BUFFER[plane * PLANE_WORDS + y * ROW_WORDS + word];
+    }
+
+    /**
+     * Copies the whole frame buffer, as laid out by {@link #getScreenWord(int, int, int)}: the words of each row in
+     * turn, the rows of each plane in turn.
+     *
+     * @param words Destination with room for {@link #SCREEN_WORDS} words
+     */
+    public void copyScreen(long[] words) {
+        System.arraycopy(SCREEN_BUFFER, 0, words, 0, SCREEN_WORDS);
+    }
+
+    /**
+     * @return True if the pixel is set in any plane
+     */
+    public boolean isPixelSet(int x, int y) {
+        int index = y * ROW_WORDS + x / Long.SIZE;
+        return ((SCREEN_BUFFER[index] | SCREEN_BUFFER[PLANE_WORDS + index]) << x) < 0;
+    }
+
+    public boolean isHighResolution() {
+        return hires;
+    }
+
+    public int getScreenWidth() {
+        return hires ? HIRES_WIDTH : SCREEN_WIDTH;
+    }
+
+    public int getScreenHeight() {
+        return hires ? HIRES_HEIGHT : SCREEN_HEIGHT;
+    }
+
+    public int getPC() {
+        return PC;
+    }
+
+    public int getI() {
+        return I & 0xFFFF;
+    }
+
+    public int getRegister(int x) {
+        return V[x] & 0xFF;
+    }
+
+    public long getCycleCount() {
+        return cycleCount;
+    }
+
+    /**
+     * @return Cycles of idle loops fast forwarded rather than executed, included in the cycle count
+     */
+    public long getSkippedCycles() {
+        return skippedCycles;
+    }
+
+    /**
+     * Captures the full state of the machine. Memory pages not written since the last snapshot are shared with it.
+     */
+    public Snapshot snapshot() {
+        byte[][] pages = new byte[PAGE_COUNT][];
+        for (int p = 0; p < PAGE_COUNT; p++) {
+            if (lastSnapshot != null && !PAGE_DIRTY[p]) {
+                pages[p] = lastSnapshot.pages[p];
+            } else {
+                pages[p] = Arrays.copyOfRange(MEMORY, p * PAGE_SIZE, (p + 1) * PAGE_SIZE);
+                PAGE_DIRTY[p] = false;
             }
-            break;
-            case (0xE000): {
-                int X = (OPCODE & 0x0F00) >> 8;
-                switch (OPCODE & 0x00FF) {
-                    case (0x009E): {
-                        if (KEY[X]) {
-                            NEXT_PC += 2;
-                        }
-                    }
-                    break;
-                    case (0x00A1): {
-                        if (!KEY[X]) {
-                            NEXT_PC += 2;
-                        }
-                    }
-                    break;
-                    default:
-                        System.out.printf("[Decode] Unimplemented opcode=%04x\n", OPCODE);
+        }
 
-                }
+        lastSnapshot = new Snapshot(pages, V.clone(), I, (short) PC, SP, STACK.clone(), soundTimer, delayTimer,
+                SCREEN_BUFFER.clone(), hires, planes, FLAGS.clone(), observedKeys, randomState, cycleCount, frameCycle,
+                instructionsPerFrame, quirks);
+        return lastSnapshot;
+    }
+
+    /**
+     * Puts the machine back into a captured state. Only memory pages that may differ from the machine's are
+     * compared, and only the bytes that do differ are copied, so instructions decoded or compiled from the rest are
+     * kept. The host is told the whole screen changed at the end of the next cycle. Keys held are input rather than
+     * state, so they are left as they are. The quirk profile the snapshot was taken under is set again, dropping
+     * everything decoded if it differs.
+     */
+    public void restore(Snapshot snapshot) {
+        if (snapshot.quirks != quirks) {
+            setQuirks(snapshot.quirks);
+        }
+        for (int p = 0; p < PAGE_COUNT; p++) {
+            if (lastSnapshot != null && !PAGE_DIRTY[p] && lastSnapshot.pages[p] == snapshot.pages[p]) {
+                continue;
             }
-            break;
-            case (0xF000): {
-                int X = (OPCODE & 0x0F00) >> 8;
-                switch (OPCODE & 0x00FF) {
-                    case (0x0007): {
-                        V[X] = delayTimer;
-                    }
-                    break;
-                    case (0x000A): {
-                        boolean anyKeyPressed = false;
-
-                        for (int i = 0; i < NUM_KEYS; i++) {
-                            if (KEY[i]) {
-                                V[X] = (byte) i;
-                                anyKeyPressed = true;
-                                break;
-                            }
-                        }
-                        if (!anyKeyPressed) {
-                            // Block until key is pressed.
-                            runner.blockForKey();
-                            for (int i = 0; i < NUM_KEYS; i++) {
-                                if (KEY[i]) {
-                                    V[X] = (byte) i;
-                                    break;
-                                }
-                            }
-                        }
-                        // Could we just call the gl wait here and change the Runner code to update us?
-                    }
-                    break;
-                    case (0x0015): {
-                        delayTimer = V[X];
-                    }
-                    break;
-                    case (0x0018): {
-                        soundTimer = V[X];
-                    }
-                    break;
-                    case (0x001E): {
-                        I += V[X];
-                    }
-                    break;
-                    case (0x0029): {
-                        I = (short) (FONT_HEIGHT * V[X]);
-                    }
-                    break;
-                    case (0x0033): {
-                        int number = V[X] & 0xFFFF;
-                        for (int d = 100; d >= 1; d /= 10) {
-                            MEMORY[I++] = (byte) ((number / d) % 10);
-                        }
-                    }
-                    break;
-                    case (0x0055): {
-                        for (int i = 0; i < NUMBER_REGISTERS; i++) {
-                            MEMORY[I++] = V[i];
-                        }
-                    }
-                    break;
-                    case (0x0065): {
-                        for (int i = 0; i < NUMBER_REGISTERS; i++) {
-                            V[i] = MEMORY[I++];
-                        }
-                    }
-                    break;
-                    default:
-                        System.out.printf("[Decode] Unimplemented opcode=%04x\n", OPCODE);
+            byte[] page = snapshot.pages[p];
+            int start = p * PAGE_SIZE;
+            for (int i = 0; i < PAGE_SIZE; i++) {
+                if (MEMORY[start + i] != page[i]) {
+                    MEMORY[start + i] = page[i];
+                    invalidate(start + i);
                 }
             }
-            break;
-            default:
-                System.out.printf("[Decode] Unimplemented opcode=%04x\n", OPCODE);
+            PAGE_DIRTY[p] = false;
         }
-        PC = NEXT_PC;
+        lastSnapshot = snapshot;
 
-        cycleCount++;
+        System.arraycopy(snapshot.V, 0, V, 0, NUMBER_REGISTERS);
+        I = snapshot.I;
+        PC = snapshot.PC & 0xFFFF;
+        SP = snapshot.SP;
+        System.arraycopy(snapshot.STACK, 0, STACK, 0, STACK_SIZE);
+        soundTimer = snapshot.soundTimer;
+        delayTimer = snapshot.delayTimer;
+        System.arraycopy(snapshot.screen, 0, SCREEN_BUFFER, 0, SCREEN_WORDS);
+        hires = snapshot.hires;
+        planes = snapshot.planes;
+        System.arraycopy(snapshot.FLAGS, 0, FLAGS, 0, NUMBER_REGISTERS);
+        observedKeys = snapshot.keys;
+        waitingForKey = false;
+        randomState = snapshot.randomState;
+        cycleCount = snapshot.cycleCount;
+        frameCycle = snapshot.frameCycle;
+        instructionsPerFrame = snapshot.instructionsPerFrame;
 
-        if (soundTimer > 0) {
-            soundTimer--;
-            if (soundTimer == 0) {
-                // TODO: Hook into some audio layer APIs
-                System.out.printf("[Sound] Beep!\n");
-                java.awt.Toolkit.getDefaultToolkit().beep();
+        drawPending = true;
+    }
+
+    public int getDelayTimer() {
+        return delayTimer & 0xFF;
+    }
+
+    public int getSoundTimer() {
+        return soundTimer & 0xFF;
+    }
+
+    public int getInstructionsPerFrame() {
+        return instructionsPerFrame;
+    }
+
+    /**
+     * Sets the emulated CPU speed, as the number of instructions executed for every 60Hz timer tick.
+     */
+    public void setInstructionsPerFrame(int instructionsPerFrame) {
+        if (instructionsPerFrame < 1) {
+            throw new IllegalArgumentException("Instructions per frame must be positive, got " + instructionsPerFrame);
+        }
+        this.instructionsPerFrame = instructionsPerFrame;
+        frameCycle = Math.min(frameCycle, instructionsPerFrame - 1);
+    }
+
+    /**
+     * Marks a key as held. Safe to call from any thread, and wakes a thread in {@link #awaitKey()}.
+     *
+     * @param key The key, from 0x0 to 0xF
+     */
+    public void pressKey(int key) {
+        keys.accumulateAndGet(1 << key, (held, bit) -> held | bit);
+        Thread waiter = keyWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    /**
+     * Marks a key as released. Safe to call from any thread.
+     *
+     * @param key The key, from 0x0 to 0xF
+     */
+    public void releaseKey(int key) {
+        keys.accumulateAndGet(~(1 << key), (held, mask) -> held & mask);
+    }
+
+    /**
+     * @param held Keys held, bit per key
+     */
+    public void setKeys(int held) {
+        keys.set(held);
+        Thread waiter = keyWaiter;
+        if (held != 0 && waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    /**
+     * @return Keys held, bit per key
+     */
+    public int getKeys() {
+        return keys.get();
+    }
+
+    /**
+     * @return True if FX0A is waiting for a key, until one is pressed running the machine only retries it
+     */
+    public boolean isWaitingForKey() {
+        return waitingForKey;
+    }
+
+    /**
+     * Parks the calling thread while the machine waits for a key and none is held, using no CPU until
+     * {@link #pressKey(int)} or {@link #setKeys(int)} is called from another thread, or the thread is interrupted.
+     */
+    public void awaitKey() {
+        keyWaiter = Thread.currentThread();
+        try {
+            while (waitingForKey && keys.get() == 0 && !Thread.currentThread().isInterrupted()) {
+                LockSupport.park(this);
             }
+        } finally {
+            keyWaiter = null;
         }
-        if (delayTimer > 0) {
-            delayTimer--;
+    }
+
+    /**
+     * Reads the keys for an instruction, logging any change since the last read for replay.
+     */
+    private int readKeys() {
+        int held = keys.get();
+        if (held != observedKeys) {
+            observedKeys = held;
+            if (inputRecorder != null) {
+                inputRecorder.record(cycleCount, held);
+            }
         }
+        return held;
+    }
+
+    /**
+     * Starts or stops profiling. While a profiler is set every instruction is interpreted and counted, without one
+     * nothing is counted and the interpreter loops don't check for it.
+     *
+     * @param profiler Profiler to count with, or null to stop
+     */
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+        updateInstrumented();
+    }
+
+    public Profiler getProfiler() {
+        return profiler;
     }
 
-    public boolean[] getScreenBuffer() {
-        return SCREEN_BUFFER;
+    /**
+     * Starts or stops tracing. At {@link Tracer.Level#INSTRUCTIONS} every instruction is interpreted and traced, as
+     * when profiling.
+     *
+     * @param tracer Tracer to write to, or null to stop
+     */
+    public void setTracer(Tracer tracer) {
+        this.tracer = tracer;
+        updateInstrumented();
+    }
+
+    public Tracer getTracer() {
+        return tracer;
     }
 
-    public boolean shouldDraw() {
-        return drawPending;
+    /**
+     * Sets the platform whose behaviour instructions follow where platforms differ, from the next instruction on.
+     * Meant to be set before loading a ROM, instructions already decoded or compiled are dropped.
+     */
+    public void setQuirks(QuirkProfile quirks) {
+        this.quirks = quirks;
+        Arrays.fill(DECODE_CACHE, Decoder.NOT_DECODED);
+        if (recompiler != null) {
+            recompiler.reset();
+        }
     }
 
-    public void clearDraw() {
-        drawPending = false;
+    public QuirkProfile getQuirks() {
+        return quirks;
     }
 
-    public void setKeys(boolean[] fromKeys) {
-        for (int i = 0; i < fromKeys.length; i++) {
-            KEY[i] = fromKeys[i];
+    /**
+     * Attaches a debugger, whose breakpoints and watchpoints take effect from the next run or step, or detaches the
+     * current one.
+     *
+     * @param debugger Debugger to check against, or null to stop debugging
+     */
+    public void setDebugger(Debugger debugger) {
+        if (this.debugger != null) {
+            this.debugger.attach(null);
+        }
+        this.debugger = debugger;
+        if (debugger != null) {
+            debugger.attach(this);
         }
+        updateInstrumented();
     }
 
-    public void setRunner(Runner runner) {
-        this.runner = runner;
+    public Debugger getDebugger() {
+        return debugger;
+    }
+
+    /**
+     * Executes the instruction at PC, interpreted, even if a breakpoint is set there. Watchpoints still stop it.
+     */
+    public void stepInstruction() {
+        startRun();
+        if (debugger != null) {
+            debugger.resumeAt(PC, cycleCount);
+        }
+        instrumentedCycle();
+    }
+
+    /**
+     * Executes the instruction at PC like {@link #stepInstruction()}, but runs a 2NNN call through to its return.
+     * Returns early if a breakpoint or watchpoint inside the call stops it, or FX0A halts the machine to wait for a
+     * key.
+     *
+     * @return The number of cycles executed
+     */
+    public long stepOver() {
+        long start = cycleCount;
+        boolean call = Decoder.op(decodeAt(PC)) == Decoder.OP_CALL;
+        int returnAddress = (PC + 2) & 0xFFFF;
+        int depth = SP;
+        stepInstruction();
+        if (call && !stopped && !waitingForKey) {
+            runUntil(vm -> vm.PC == returnAddress && vm.SP == depth);
+        }
+        return cycleCount - start;
+    }
+
+    void updateInstrumented() {
+        instrumented = profiler != null || (tracer != null && tracer.getLevel() == Tracer.Level.INSTRUCTIONS)
+                || (debugger != null && debugger.isArmed());
+    }
+
+    /**
+     * @return Instructions executed that the machine has no operation for, each skipped over
+     */
+    public long getUnknownOpcodes() {
+        return unknownOpcodes;
+    }
+
+    /**
+     * @param recorder Told about every change to the keys from now on, or null to stop
+     */
+    void setInputRecorder(InputRecorder recorder) {
+        this.inputRecorder = recorder;
+        if (recorder != null && observedKeys != 0) {
+            // A replay starts with no keys held
+            recorder.record(cycleCount, observedKeys);
+        }
+    }
+
+    public void setHost(Host host) {
+        this.host = host;
+    }
+
+    /**
+     * Turns the basic block recompiler on or off. Compiled blocks are only used by {@link #runFor(long)} and
+     * {@link #runUntil(Predicate)}, {@link #cycle()} always interprets a single instruction.
+     */
+    public void setRecompilerEnabled(boolean enabled) {
+        if (enabled && recompiler == null) {
+            recompiler = new Recompiler(this, MEMORY_SIZE);
+        } else if (!enabled) {
+            recompiler = null;
+        }
+    }
+
+    public boolean isRecompilerEnabled() {
+        return recompiler != null;
+    }
+
+    /**
+     * Finds the code reachable in memory from the entry point, meant to be called right after loading a ROM, before
+     * it has had a chance to change its own code.
+     */
+    public RomAnalysis analyze() {
+        return RomAnalysis.analyze(MEMORY);
     }
 }
@@ -0,0 +1,89 @@
+package me.vkandola.emulator;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+
+/**
+ * Writes samples to a mono 16 bit PCM WAV file. The sizes in the header are filled in on close, so a file that was
+ * never closed still plays in most tools but claims to be empty.
+ */
+public class WavSink implements AudioSink {
+    private static final int HEADER_BYTES = 44;
+
+    private final Path path;
+    private RandomAccessFile file;
+    private byte[] bytes = new byte[0];
+    private long dataBytes;
+
+    public WavSink(Path path) {
+        this.path = path;
+    }
+
+    @Override
+    public void open(int sampleRate) throws IOException {
+        file = new RandomAccessFile(path.toFile(), "rw");
+        file.setLength(0);
+        byte[] header = new byte[HEADER_BYTES];
+        putTag(header, 0, "RIFF");
+        putTag(header, 8, "WAVE");
+        putTag(header, 12, "fmt ");
+        putInt(header, 16, 16);              // Format chunk size
+        putShort(header, 20, 1);             // PCM
+        putShort(header, 22, 1);             // Channels
+        putInt(header, 24, sampleRate);
+        putInt(header, 28, sampleRate * Short.BYTES);
+        putShort(header, 32, Short.BYTES);   // Bytes per sample frame
+        putShort(header, 34, Short.SIZE);
+        putTag(header, 36, "data");
+        file.write(header);
+    }
+
+    @Override
+    public void write(short[] samples, int count) throws IOException {
+        if (bytes.length < count * Short.BYTES) {
+            bytes = new byte[count * Short.BYTES];
+        }
+        for (int i = 0; i < count; i++) {
+            putShort(bytes, i * Short.BYTES, samples[i]);
+        }
+        file.write(bytes, 0, count * Short.BYTES);
+        dataBytes += count * Short.BYTES;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (file == null) {
+            return;
+        }
+        try {
+            byte[] size = new byte[Integer.BYTES];
+            putInt(size, 0, (int) (HEADER_BYTES - 8 + dataBytes));
+            file.seek(4);
+            file.write(size);
+            putInt(size, 0, (int) dataBytes);
+            file.seek(40);
+            file.write(size);
+        } finally {
+            file.close();
+            file = null;
+        }
+    }
+
+    private static void putTag(byte[] buffer, int offset, String tag) {
+        for (int i = 0; i < tag.length(); i++) {
+            buffer[offset + i] = (byte) tag.charAt(i);
+        }
+    }
+
+    // WAV is little-endian throughout
+    private static void putShort(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) value;
+        buffer[offset + 1] = (byte) (value >> 8);
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        putShort(buffer, offset, value);
+        putShort(buffer, offset + 2, value >> 16);
+    }
+}